@@ -0,0 +1,68 @@
+package org.apache.maven.plugin.cmake.ng;
+
+/*
+ * Copyright 2012 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * A named CMake build configuration, such as Debug, Release, or a sanitizer
+ * build.
+ *
+ * Each configuration is generated into its own subdirectory of the output
+ * directory, with its own CMake variables and environment.
+ */
+public class BuildConfiguration {
+  /**
+   * Name of this configuration.  Used in log messages and as the default
+   * output subdirectory.
+   */
+  private String name;
+
+  /**
+   * Output subdirectory for this configuration, relative to the output
+   * directory.  Defaults to the configuration name.
+   */
+  private String output;
+
+  /**
+   * CMake cached variables to set.  These override the shared vars.
+   */
+  private Map<String, String> vars;
+
+  /**
+   * Environment variables to pass to CMake and make.  These override the
+   * shared env.
+   */
+  private Map<String, String> env;
+
+  public String getName() {
+    return name;
+  }
+
+  public File getOutput(File base) {
+    return new File(base, (output == null) ? name : output);
+  }
+
+  public Map<String, String> getVars() {
+    return vars;
+  }
+
+  public Map<String, String> getEnv() {
+    return env;
+  }
+}
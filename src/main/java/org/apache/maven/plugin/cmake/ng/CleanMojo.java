@@ -37,25 +37,120 @@ public class CleanMojo extends AbstractMojo {
    */
   private File output;
 
-  void recursiveDelete(File f) throws IOException {
-    if (!f.exists())
+  /**
+   * What to remove.
+   *
+   * @parameter expression="${cleanMode}" default-value="all"
+   *            Can be either "all", which removes the whole output directory,
+   *            or "products", which runs make clean to remove what the
+   *            build produces, and also removes the test results (CTest's,
+   *            and the files the test goal writes to the results directory)
+   *            and the files the analyze mode writes.  This keeps the CMake
+   *            configuration (CMakeCache.txt, the toolchain detection
+   *            results in CMakeFiles, and the generated makefiles) so that
+   *            the next build stays incremental.
+   */
+  private String cleanMode;
+
+  /**
+   * Path to the test results directory, as passed to the test goal.
+   *
+   * @parameter expression="${results}" default-value="cmake-ng-results"
+   */
+  private File results;
+
+  /**
+   * Remove the files which the test goal writes to the results directory.
+   */
+  private void deleteTestResults() throws IOException {
+    File[] children = results.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File c : children) {
+      String name = c.getName();
+      if (c.isFile() && (name.endsWith(".status") ||
+          name.endsWith(".stdout") || name.endsWith(".stderr") ||
+          name.endsWith(".stacks"))) {
+        if (!c.delete()) {
+          throw new IOException("Failed to delete file: " + c);
+        }
+      }
+    }
+  }
+
+  /**
+   * Remove the files which the analyze mode leaves in the build directory:
+   * the report, and the time traces and compile timings next to the object
+   * files.  The build system doesn't know about these, so make clean leaves
+   * them behind.
+   */
+  private void deleteAnalysisFiles(File dir) throws IOException {
+    File[] children = dir.listFiles();
+    if (children == null) {
       return;
-    if (f.isDirectory()) {
-      for (File c : f.listFiles()) {
-        recursiveDelete(c);
+    }
+    for (File c : children) {
+      String name = c.getName();
+      if (c.isDirectory()) {
+        deleteAnalysisFiles(c);
+      } else if ((c.getParentFile().equals(output) &&
+            name.equals(CompileReport.REPORT_NAME)) ||
+          ((name.endsWith(".json") ||
+            name.endsWith(CompileReport.TIMING_SUFFIX)) &&
+            CompileReport.inTargetDir(c, output))) {
+        if (!c.delete()) {
+          throw new IOException("Failed to delete file: " + c);
+        }
       }
     }
-    if (!f.delete()) {
-      throw new IOException("Failed to delete file: " + f);
+  }
+
+  /**
+   * Remove the build products with make clean.
+   *
+   * CMake knows exactly which files each target produces, including the
+   * ADDITIONAL_CLEAN_FILES of each directory and target, so we leave it to
+   * the generated makefiles.  They keep CMakeCache.txt, the toolchain
+   * detection results, the makefiles themselves, and anything the build
+   * does not recreate, such as prebuilt binaries copied into the tree with
+   * configure_file or file(COPY), and FetchContent sources.
+   */
+  private void makeClean() throws MojoExecutionException {
+    if (!new File(output, "Makefile").exists()) {
+      return;
     }
+    MakeRunner make = new MakeRunner(output);
+    make.setTarget("clean");
+    make.run();
   }
 
   public void execute() throws MojoExecutionException {
-    try {
-      recursiveDelete(output);
-    } catch (IOException e) {
-      throw new MojoExecutionException("Error removing output directory '" +
-          output + "'", e);
+    if (cleanMode.equals("all")) {
+      try {
+        Utils.recursiveDelete(output);
+      } catch (IOException e) {
+        throw new MojoExecutionException("Error removing output directory '" +
+            output + "'", e);
+      }
+    } else if (cleanMode.equals("products")) {
+      makeClean();
+      try {
+        deleteAnalysisFiles(output);
+        Utils.recursiveDelete(new File(output, "Testing"));
+      } catch (IOException e) {
+        throw new MojoExecutionException("Error removing analysis and " +
+            "CTest results from '" + output + "'", e);
+      }
+      try {
+        deleteTestResults();
+      } catch (IOException e) {
+        throw new MojoExecutionException("Error removing test results " +
+            "from '" + results + "'", e);
+      }
+    } else {
+      throw new MojoExecutionException("cleanMode must be either all or " +
+          "products");
     }
   }
 }
@@ -18,12 +18,9 @@ package org.apache.maven.plugin.cmake.ng;
 
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
-import org.apache.maven.plugin.cmake.ng.Utils.OutputBufferThread;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
 
 /**
  * Goal which builds the native sources
@@ -47,57 +44,90 @@ public class CompileMojo extends AbstractMojo {
    */
   private String target;
 
+  /**
+   * Number of parallel make jobs to run.
+   *
+   * If this is 0, we don't pass -j to make at all.
+   *
+   * @parameter expression="${jobs}" default-value="0"
+   */
+  private int jobs;
+
+  /**
+   * Amount of memory, in megabytes, to keep available while compiling.
+   *
+   * If this is greater than 0, we reduce the number of make jobs so that
+   * memoryPerJob megabytes for each job still leaves this much memory free.
+   * make can't change its job count once it has started, so while it runs,
+   * we pause its newest jobs whenever available memory drops below the
+   * reserve, and resume them once it is back above the reserve plus
+   * memoryPerJob.  At least one job is always left running.
+   *
+   * @parameter expression="${memoryReserve}" default-value="0"
+   */
+  private long memoryReserve;
+
+  /**
+   * Amount of memory, in megabytes, that we expect each make job to use.
+   *
+   * @parameter expression="${memoryPerJob}" default-value="1024"
+   */
+  private long memoryPerJob;
+
+  /**
+   * If true, print all of make's output as it arrives.
+   *
+   * Otherwise, make's stdout is only printed if the build fails, and we print
+   * periodic progress reports instead.  Compiler warnings and errors are
+   * always printed as they arrive.
+   *
+   * @parameter expression="${streamOutput}" default-value="false"
+   */
+  private boolean streamOutput;
+
+  /**
+   * Minimum number of seconds between progress reports.
+   *
+   * @parameter expression="${progressInterval}" default-value="10"
+   */
+  private int progressInterval;
+
+  /**
+   * If true, terminate the build as soon as the first compiler error is seen,
+   * rather than letting the other parallel make jobs carry on.
+   *
+   * @parameter expression="${failFast}" default-value="false"
+   */
+  private boolean failFast;
+
+  /**
+   * If true, write a report of the headers and translation units which cost
+   * the most compile time, after a successful build.
+   *
+   * Set analyze on the generate goal as well, so that the compiler writes the
+   * time traces or compile timings this report is based on.
+   *
+   * @parameter expression="${analyze}" default-value="false"
+   */
+  private boolean analyze;
+
   public void execute() throws MojoExecutionException {
     Utils.validatePlatform();
-
-    List<String> cmd = new LinkedList<String>();
-    cmd.add("make");
-    cmd.add("VERBOSE=1");
-    if (target != null) {
-      cmd.add(target);
-    }
-    ProcessBuilder pb = new ProcessBuilder(cmd);
-    pb.directory(output);
-    Process proc = null;
-    int retCode = -1;
-    OutputBufferThread stdoutThread = null, stderrThread = null;
-    try {
-      proc = pb.start();
-      stdoutThread = new OutputBufferThread(proc.getInputStream());
-      stderrThread = new OutputBufferThread(proc.getErrorStream());
-      stdoutThread.start();
-      stderrThread.start();
-      retCode = proc.waitFor();
-      if (retCode != 0) {
-        throw new MojoExecutionException("make failed with error code " +
-            retCode);
-      }
-    } catch (InterruptedException e) {
-      throw new MojoExecutionException("Interrupted during Process#waitFor", e);
-    } catch (IOException e) {
-      throw new MojoExecutionException("Error executing make", e);
-    } finally {
-      if (stdoutThread != null) {
-        try {
-          stdoutThread.join();
-        } catch (InterruptedException e) {
-          e.printStackTrace();
-        }
-        if (retCode != 0) {
-          stdoutThread.printBufs();
-        }
-      }
-      if (stderrThread != null) {
-        try {
-          stderrThread.join();
-        } catch (InterruptedException e) {
-          e.printStackTrace();
-        }
-        // We always print stderr, since it contains the compiler warning
-        // messages.  These are interesting even if compilation succeeded.
-        stderrThread.printBufs();
+    MakeRunner make = new MakeRunner(output);
+    make.setTarget(target);
+    make.setJobs(jobs);
+    make.setMemoryLimits(memoryReserve, memoryPerJob);
+    make.setStreamOutput(streamOutput);
+    make.setProgressIntervalMs(progressInterval * 1000L);
+    make.setFailFast(failFast);
+    make.run();
+    if (analyze) {
+      try {
+        CompileReport.generate(output);
+      } catch (IOException e) {
+        throw new MojoExecutionException("Error writing the compile " +
+            "analysis report", e);
       }
-      proc.destroy();
     }
   }
 }
@@ -0,0 +1,491 @@
+package org.apache.maven.plugin.cmake.ng;
+
+/*
+ * Copyright 2012 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Ranks the headers and translation units which cost the most compile time.
+ *
+ * When the compiler supports -ftime-trace, GenerateMojo adds it to the
+ * compile flags in analysis mode, and the compiler writes a trace next to
+ * every object file.  We add up the time spent parsing each header (including
+ * the headers it includes in turn) across all translation units, and the
+ * total compile time of each translation unit.
+ *
+ * For compilers without -ftime-trace, such as GCC, GenerateMojo instead sets
+ * a small timing script as the compiler launcher, which writes the wall time
+ * of each compile to a .time file next to the object file.  Translation units
+ * are ranked by those times, and headers by the total compile time of the
+ * translation units which include them, according to the dependency files.
+ *
+ * Without either, we fall back on the dependency files alone, and rank
+ * headers by how many translation units include them, and translation units
+ * by how many headers they include.
+ */
+public class CompileReport {
+  /**
+   * Name of the report file, in the output directory.
+   */
+  static final String REPORT_NAME = "cmake-ng-compile-report.txt";
+
+  /**
+   * Number of entries of each ranking to print to the Maven log.  The report
+   * file has all of them.
+   */
+  private static final int SUMMARY_ENTRIES = 10;
+
+  /**
+   * Name of the compiler launcher script which times each compile, in the
+   * output directory.
+   */
+  static final String TIMER_NAME = "cmake-ng-compile-timer.sh";
+
+  /**
+   * Suffix which the timer adds to the object file name for its output.
+   */
+  static final String TIMING_SUFFIX = ".time";
+
+  private static final String TIMER_SCRIPT =
+      "#!/bin/sh\n" +
+      "# Written by the cmake-ng analyze mode.  CMake runs this as the\n" +
+      "# compiler launcher, and it writes the wall time of each compile,\n" +
+      "# in microseconds, to a " + TIMING_SUFFIX + " file next to the " +
+      "object file.\n" +
+      "now() {\n" +
+      "  t=`date +%s%N`\n" +
+      "  case \"$t\" in\n" +
+      "    *N) t=`date +%s`000000000 ;;\n" +
+      "  esac\n" +
+      "  echo \"$t\"\n" +
+      "}\n" +
+      "obj=\n" +
+      "prev=\n" +
+      "for arg in \"$@\"; do\n" +
+      "  if [ \"$prev\" = \"-o\" ]; then\n" +
+      "    obj=\"$arg\"\n" +
+      "  fi\n" +
+      "  prev=\"$arg\"\n" +
+      "done\n" +
+      "start=`now`\n" +
+      "\"$@\"\n" +
+      "ret=$?\n" +
+      "end=`now`\n" +
+      "if [ $ret -eq 0 ] && [ -n \"$obj\" ]; then\n" +
+      "  echo $(( (end - start) / 1000 )) > \"$obj" + TIMING_SUFFIX +
+      "\"\n" +
+      "fi\n" +
+      "exit $ret\n";
+
+  /**
+   * Where the costs in the report come from.
+   */
+  private enum Mode {
+    /** -ftime-trace files. */
+    TRACES,
+    /** Timer files, with the dependency files for headers. */
+    TIMINGS,
+    /** Dependency files only. */
+    DEPENDENCIES
+  }
+
+  /**
+   * A header or translation unit, and what it cost.
+   */
+  private static class Entry {
+    private final String name;
+    private long cost;
+    private int count;
+
+    public Entry(String name) {
+      this.name = name;
+    }
+  }
+
+  private static final Comparator<Entry> BY_COST = new Comparator<Entry>() {
+    public int compare(Entry a, Entry b) {
+      if (a.cost != b.cost) {
+        return (a.cost > b.cost) ? -1 : 1;
+      }
+      return a.name.compareTo(b.name);
+    }
+  };
+
+  private final File output;
+  private final Map<String, Entry> headers = new HashMap<String, Entry>();
+  private final Map<String, Entry> units = new HashMap<String, Entry>();
+
+  /**
+   * Translation unit names with timer files, by their getUnitKey.
+   */
+  private final Map<String, String> timedUnits =
+      new HashMap<String, String>();
+
+  private CompileReport(File output) {
+    this.output = output;
+  }
+
+  /**
+   * Returns true if a file is inside a CMake target directory, such as
+   * CMakeFiles/foo.dir/, which is where the per-object files live.
+   *
+   * Only the directories below output are checked, so a build directory
+   * which is itself inside something named .dir doesn't match everything.
+   * f must be a path under output, as returned by listing it.
+   */
+  static boolean inTargetDir(File f, File output) {
+    for (File dir = f.getParentFile(); (dir != null) && (!dir.equals(output));
+        dir = dir.getParentFile()) {
+      if (dir.getName().endsWith(".dir")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Write the compiler launcher script which times each compile.
+   *
+   * @return the script.
+   */
+  static File writeTimer(File output) throws IOException {
+    output.mkdirs();
+    File timer = new File(output, TIMER_NAME);
+    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(timer), "UTF-8"));
+    try {
+      writer.write(TIMER_SCRIPT);
+    } finally {
+      writer.close();
+    }
+    if (!timer.setExecutable(true)) {
+      throw new IOException("Failed to make " + timer + " executable");
+    }
+    return timer;
+  }
+
+  private static void findFiles(File output, File dir, List<File> traces,
+      List<File> timings, List<File> depFiles) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File c : children) {
+      if (c.isDirectory()) {
+        findFiles(output, c, traces, timings, depFiles);
+      } else if (!inTargetDir(c, output)) {
+        continue;
+      } else if (c.getName().endsWith(".json")) {
+        traces.add(c);
+      } else if (c.getName().endsWith(TIMING_SUFFIX)) {
+        timings.add(c);
+      } else if (c.getName().endsWith(".d") ||
+          c.getName().equals("compiler_depend.make") ||
+          c.getName().equals("depend.make")) {
+        depFiles.add(c);
+      }
+    }
+  }
+
+  private String relativeName(File f) {
+    String path = f.getAbsolutePath();
+    String prefix = output.getAbsolutePath() + File.separator;
+    return path.startsWith(prefix) ? path.substring(prefix.length()) : path;
+  }
+
+  private static Entry getEntry(Map<String, Entry> entries, String name) {
+    Entry entry = entries.get(name);
+    if (entry == null) {
+      entry = new Entry(name);
+      entries.put(name, entry);
+    }
+    return entry;
+  }
+
+  private static long getLong(Object val) {
+    return (val instanceof Number) ? ((Number)val).longValue() : 0;
+  }
+
+  /**
+   * Add up the costs in a -ftime-trace file.
+   *
+   * Each "Source" event covers the parsing of one header, with the header in
+   * args.detail, and the "ExecuteCompiler" event covers the whole
+   * compilation.  Durations are in microseconds.
+   */
+  @SuppressWarnings("unchecked")
+  private void addTrace(File trace) throws IOException {
+    Object doc = JsonParser.parse(Utils.readFile(trace));
+    if (!(doc instanceof Map)) {
+      return;
+    }
+    Object events = ((Map<String, Object>)doc).get("traceEvents");
+    if (!(events instanceof List)) {
+      return;
+    }
+    String name = relativeName(trace);
+    Entry unit = getEntry(units, name.substring(0, name.length() - 5));
+    Set<String> seen = new HashSet<String>();
+    for (Object obj : (List<Object>)events) {
+      if (!(obj instanceof Map)) {
+        continue;
+      }
+      Map<String, Object> event = (Map<String, Object>)obj;
+      Object eventName = event.get("name");
+      long dur = getLong(event.get("dur"));
+      if ("ExecuteCompiler".equals(eventName)) {
+        unit.cost = Math.max(unit.cost, dur);
+      } else if ("Source".equals(eventName)) {
+        Object args = event.get("args");
+        if (!(args instanceof Map)) {
+          continue;
+        }
+        Object detail = ((Map<String, Object>)args).get("detail");
+        if (detail instanceof String) {
+          Entry header = getEntry(headers, (String)detail);
+          header.cost += dur;
+          if (seen.add((String)detail)) {
+            header.count++;
+            unit.count++;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the part of an object file path from its target directory on.
+   *
+   * The dependency files name objects relative to the build directory of
+   * their CMakeLists.txt, rather than the top of the tree.  Since target
+   * names are unique, this is enough to match them with the timer files.
+   */
+  static String getUnitKey(String path) {
+    int idx = path.lastIndexOf(".dir/");
+    if (idx < 0) {
+      return path;
+    }
+    return path.substring(path.lastIndexOf('/', idx) + 1);
+  }
+
+  /**
+   * Add the compile time in a timer file.
+   */
+  private void addTiming(File timing) throws IOException {
+    String name = relativeName(timing);
+    name = name.substring(0, name.length() - TIMING_SUFFIX.length());
+    long us;
+    try {
+      us = Long.parseLong(Utils.readFile(timing).trim());
+    } catch (NumberFormatException e) {
+      return;
+    }
+    getEntry(units, name).cost = us;
+    timedUnits.put(getUnitKey(name), name);
+  }
+
+  private static boolean isSource(String path) {
+    return path.endsWith(".c") || path.endsWith(".cc") ||
+        path.endsWith(".cpp") || path.endsWith(".cxx") ||
+        path.endsWith(".C");
+  }
+
+  /**
+   * Count the headers in a Makefile-syntax dependency file.
+   *
+   * If we have timer files, each header is charged the compile time of each
+   * translation unit which includes it.  Otherwise, it is charged one for
+   * each.
+   */
+  private void addDepFile(File depFile) throws IOException {
+    String contents = Utils.readFile(depFile).replace("\\\n", " ");
+    for (String line : contents.split("\n")) {
+      if (line.startsWith("#")) {
+        continue;
+      }
+      int idx = line.indexOf(": ");
+      if (idx < 0) {
+        continue;
+      }
+      String name = line.substring(0, idx).trim();
+      boolean timed = !timedUnits.isEmpty();
+      if (timed) {
+        String timedName = timedUnits.get(getUnitKey(name));
+        if (timedName == null) {
+          continue;
+        }
+        name = timedName;
+      }
+      Entry unit = getEntry(units, name);
+      for (String dep : line.substring(idx + 2).trim().split("\\s+")) {
+        if (dep.equals("") || isSource(dep)) {
+          continue;
+        }
+        Entry header = getEntry(headers, dep);
+        header.cost += timed ? unit.cost : 1;
+        header.count++;
+        if (!timed) {
+          unit.cost++;
+        }
+        unit.count++;
+      }
+    }
+  }
+
+  private static String formatUs(long us) {
+    return String.format("%10.3fs", us / 1000000.0);
+  }
+
+  private static void writeRanking(StringBuilder bld, String title,
+      List<Entry> entries, boolean timed, String countName, int limit) {
+    bld.append(title).append(":\n");
+    int idx = 0;
+    for (Entry e : entries) {
+      if (idx++ >= limit) {
+        break;
+      }
+      if (timed) {
+        bld.append(String.format("  %s %6d %s  %s%n", formatUs(e.cost),
+            e.count, countName, e.name));
+      } else {
+        bld.append(String.format("  %6d %s  %s%n", e.count, countName,
+            e.name));
+      }
+    }
+    bld.append("\n");
+  }
+
+  private String format(Mode mode, int numFiles, int limit) {
+    List<Entry> sortedHeaders = new ArrayList<Entry>(headers.values());
+    Collections.sort(sortedHeaders, BY_COST);
+    List<Entry> sortedUnits = new ArrayList<Entry>(units.values());
+    Collections.sort(sortedUnits, BY_COST);
+    StringBuilder bld = new StringBuilder();
+    if (mode == Mode.TRACES) {
+      bld.append("Compile time analysis of ").append(output)
+          .append(" from ").append(numFiles).append(" -ftime-trace files\n\n");
+      writeRanking(bld, "Headers by total parse time, including the " +
+          "headers they include", sortedHeaders, true, "TUs", limit);
+      writeRanking(bld, "Translation units by compile time", sortedUnits,
+          true, "headers", limit);
+    } else if (mode == Mode.TIMINGS) {
+      bld.append("Compile time analysis of ").append(output).append(" from ")
+          .append(numFiles).append(" compile timings.  The compiler does ")
+          .append("not support -ftime-trace, so headers are charged the ")
+          .append("whole compile time of each translation unit which ")
+          .append("includes them.\n\n");
+      writeRanking(bld, "Headers by total compile time of the translation " +
+          "units including them", sortedHeaders, true, "TUs", limit);
+      writeRanking(bld, "Translation units by compile time", sortedUnits,
+          true, "headers", limit);
+    } else {
+      bld.append("Include analysis of ").append(output).append(" from ")
+          .append(numFiles).append(" dependency files.  The compiler ")
+          .append("does not support -ftime-trace, so no timings are ")
+          .append("available.\n\n");
+      writeRanking(bld, "Headers by number of including translation units",
+          sortedHeaders, false, "TUs", limit);
+      writeRanking(bld, "Translation units by number of included headers",
+          sortedUnits, false, "headers", limit);
+    }
+    return bld.toString();
+  }
+
+  /**
+   * Analyze a build directory, write the report, and print a summary.
+   */
+  static void generate(File output) throws IOException {
+    CompileReport report = new CompileReport(output);
+    List<File> traces = new ArrayList<File>();
+    List<File> timings = new ArrayList<File>();
+    List<File> depFiles = new ArrayList<File>();
+    findFiles(output, output, traces, timings, depFiles);
+    Mode mode;
+    int numFiles;
+    if (!traces.isEmpty()) {
+      mode = Mode.TRACES;
+      numFiles = 0;
+      for (File trace : traces) {
+        // A trace left half-written by a killed compile, or any other .json
+        // file in a target directory, shouldn't fail the build.
+        try {
+          report.addTrace(trace);
+          numFiles++;
+        } catch (IOException e) {
+          System.out.println("Skipping " + trace + ": " + e.getMessage());
+        }
+      }
+    } else {
+      mode = timings.isEmpty() ? Mode.DEPENDENCIES : Mode.TIMINGS;
+      numFiles = timings.isEmpty() ? depFiles.size() : timings.size();
+      for (File timing : timings) {
+        report.addTiming(timing);
+      }
+      // Newer versions of CMake merge the compiler's .d files into
+      // compiler_depend.make, so only read one kind, to avoid counting the
+      // same dependency twice.
+      boolean haveDFiles = false;
+      for (File depFile : depFiles) {
+        haveDFiles |= depFile.getName().endsWith(".d");
+      }
+      for (File depFile : depFiles) {
+        if (haveDFiles == depFile.getName().endsWith(".d")) {
+          report.addDepFile(depFile);
+        }
+      }
+    }
+    File compileCommands = new File(output, "compile_commands.json");
+    String header = "";
+    if (compileCommands.exists()) {
+      try {
+        Object commands = JsonParser.parse(Utils.readFile(compileCommands));
+        if (commands instanceof List) {
+          header = compileCommands + " lists " +
+              ((List<?>)commands).size() + " translation units.\n";
+        }
+      } catch (IOException e) {
+        System.out.println("Skipping " + compileCommands + ": " +
+            e.getMessage());
+      }
+    }
+    File reportFile = new File(output, REPORT_NAME);
+    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(reportFile), "UTF-8"));
+    try {
+      writer.write(header);
+      writer.write(report.format(mode, numFiles, Integer.MAX_VALUE));
+    } finally {
+      writer.close();
+    }
+    System.out.print(header);
+    System.out.print(report.format(mode, numFiles, SUMMARY_ENTRIES));
+    System.out.println("Wrote the full compile analysis report to " +
+        reportFile);
+  }
+}
@@ -0,0 +1,288 @@
+package org.apache.maven.plugin.cmake.ng;
+
+/*
+ * Copyright 2012 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Hands out CPUs to tests which should be pinned with taskset.
+ *
+ * Tests running at the same time within one Maven JVM (for example, with
+ * 'mvn -T') compete for cores and caches, which makes timing-sensitive tests
+ * flaky and benchmark numbers noisy.  Tests which ask for CPU affinity are
+ * given a set of CPUs which no other pinned test is using, waiting if
+ * necessary until enough CPUs are free.
+ *
+ * CPUs given out in exclusive mode are also kept away from tests which did
+ * not ask for affinity: those are pinned to the remaining CPUs for as long as
+ * an exclusive reservation is held, if taskset is available.  An exclusive
+ * test also waits for any test without affinity which was already running on
+ * its CPUs to finish, so that the CPUs really are dedicated to it.
+ */
+public class CpuAllocator {
+  /**
+   * The CPUs assigned to a running test.
+   */
+  static class Assignment {
+    /**
+     * The CPUs to pin the test to, or null if it is not pinned.
+     */
+    private final List<Integer> pinned;
+
+    /**
+     * The CPUs the test may run on.
+     */
+    private final List<Integer> cpus;
+
+    private Assignment(List<Integer> pinned, List<Integer> cpus) {
+      this.pinned = pinned;
+      this.cpus = cpus;
+    }
+
+    /**
+     * Get the CPUs to pin the test to, or null if it should not be pinned.
+     */
+    List<Integer> getPinned() {
+      return pinned;
+    }
+  }
+
+  private static final Object lock = new Object();
+
+  /**
+   * CPUs which are currently assigned to a pinned test.
+   */
+  private static final Set<Integer> busy = new HashSet<Integer>();
+
+  /**
+   * CPUs which are currently reserved by an exclusive test.
+   */
+  private static final Set<Integer> exclusive = new HashSet<Integer>();
+
+  /**
+   * Running tests which did not ask for affinity.
+   */
+  private static final Set<Assignment> unpinned = new HashSet<Assignment>();
+
+  private static Boolean tasksetAvailable;
+
+  /**
+   * Returns true if the taskset command is on the PATH.
+   */
+  static synchronized boolean isTasksetAvailable() {
+    if (tasksetAvailable == null) {
+      tasksetAvailable = Boolean.valueOf(Utils.isOnPath("taskset"));
+    }
+    return tasksetAvailable.booleanValue();
+  }
+
+  /**
+   * Parse a CPU list such as "0-3,8,10-11".
+   */
+  static List<Integer> parseCpuList(String str) {
+    List<Integer> cpus = new ArrayList<Integer>();
+    for (String range : str.trim().split(",")) {
+      if (range.equals("")) {
+        continue;
+      }
+      int idx = range.indexOf('-');
+      if (idx < 0) {
+        cpus.add(Integer.parseInt(range));
+      } else {
+        int start = Integer.parseInt(range.substring(0, idx));
+        int end = Integer.parseInt(range.substring(idx + 1));
+        for (int cpu = start; cpu <= end; cpu++) {
+          cpus.add(cpu);
+        }
+      }
+    }
+    return cpus;
+  }
+
+  /**
+   * Format a CPU list in the form taskset -c expects.
+   */
+  static String formatCpuList(List<Integer> cpus) {
+    StringBuilder bld = new StringBuilder();
+    String prefix = "";
+    for (int cpu : cpus) {
+      bld.append(prefix).append(cpu);
+      prefix = ",";
+    }
+    return bld.toString();
+  }
+
+  /**
+   * Get the CPUs which this JVM is allowed to run on.
+   */
+  static List<Integer> getAllowedCpus() {
+    String status = Utils.readProcFile(new File("/proc/self/status"));
+    if (status != null) {
+      for (String line : status.split("\n")) {
+        if (line.startsWith("Cpus_allowed_list:")) {
+          try {
+            return parseCpuList(line.substring(line.indexOf(':') + 1));
+          } catch (NumberFormatException e) {
+            break;
+          }
+        }
+      }
+    }
+    List<Integer> cpus = new ArrayList<Integer>();
+    for (int cpu = 0; cpu < Runtime.getRuntime().availableProcessors();
+        cpu++) {
+      cpus.add(cpu);
+    }
+    return cpus;
+  }
+
+  /**
+   * Returns true if a running test without affinity may be using any of the
+   * given CPUs.
+   */
+  private static boolean unpinnedOverlaps(List<Integer> cpus) {
+    for (Assignment a : unpinned) {
+      for (int cpu : cpus) {
+        if (a.cpus.contains(cpu)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Assign CPUs to a test, waiting until enough of them are free.
+   *
+   * @param what         A description of the test, for log messages.
+   * @param count        The number of CPUs to assign.
+   * @param isExclusive  If true, also keep tests without affinity off these
+   *                     CPUs until they are released, and wait for those
+   *                     already running on them to finish.
+   *
+   * @return the assignment.  This must be passed to release when the test
+   *         is done.
+   */
+  static Assignment allocate(String what, int count, boolean isExclusive)
+      throws InterruptedException {
+    List<Integer> allowed = getAllowedCpus();
+    if (count > allowed.size()) {
+      throw new IllegalArgumentException("Can't assign " + count + " CPUs " +
+          "to " + what + ", since only " + allowed.size() + " are available.");
+    }
+    boolean logged = false;
+    synchronized (lock) {
+      List<Integer> cpus = null;
+      while (true) {
+        List<Integer> candidates = new ArrayList<Integer>();
+        for (int cpu : allowed) {
+          if (!busy.contains(cpu)) {
+            candidates.add(cpu);
+            if (candidates.size() == count) {
+              break;
+            }
+          }
+        }
+        if (candidates.size() == count) {
+          cpus = candidates;
+          break;
+        }
+        if (!logged) {
+          System.out.println("Waiting for " + count + " free CPUs for " +
+              what);
+          logged = true;
+        }
+        lock.wait();
+      }
+      busy.addAll(cpus);
+      if (isExclusive) {
+        // Reserve the CPUs first, so that no new test without affinity is
+        // started on them while we wait for the running ones.
+        exclusive.addAll(cpus);
+        logged = false;
+        try {
+          while (unpinnedOverlaps(cpus)) {
+            if (!logged) {
+              System.out.println("Waiting for tests without CPU affinity " +
+                  "to finish before running " + what);
+              logged = true;
+            }
+            lock.wait();
+          }
+        } catch (InterruptedException e) {
+          // The caller never gets an assignment to release, so give the
+          // CPUs back here.
+          busy.removeAll(cpus);
+          exclusive.removeAll(cpus);
+          lock.notifyAll();
+          throw e;
+        }
+      }
+      return new Assignment(cpus, cpus);
+    }
+  }
+
+  /**
+   * Register a test which did not ask for affinity.
+   *
+   * If exclusive reservations are held and taskset is available, the test
+   * should be pinned to the CPUs which are not reserved.  Otherwise it may
+   * run anywhere.
+   *
+   * @return the assignment.  This must be passed to release when the test
+   *         is done.
+   */
+  static Assignment allocateUnpinned() {
+    List<Integer> allowed = getAllowedCpus();
+    synchronized (lock) {
+      List<Integer> pinned = null;
+      if (!exclusive.isEmpty() && isTasksetAvailable()) {
+        List<Integer> cpus = new ArrayList<Integer>();
+        for (int cpu : allowed) {
+          if (!exclusive.contains(cpu)) {
+            cpus.add(cpu);
+          }
+        }
+        // If every CPU is reserved, there's nowhere better to go.
+        if (!cpus.isEmpty()) {
+          pinned = cpus;
+        }
+      }
+      Assignment a = new Assignment(pinned,
+          (pinned == null) ? allowed : pinned);
+      unpinned.add(a);
+      return a;
+    }
+  }
+
+  /**
+   * Release an assignment made by allocate or allocateUnpinned.
+   */
+  static void release(Assignment a) {
+    synchronized (lock) {
+      if (!unpinned.remove(a)) {
+        busy.removeAll(a.cpus);
+        exclusive.removeAll(a.cpus);
+      }
+      lock.notifyAll();
+    }
+  }
+}
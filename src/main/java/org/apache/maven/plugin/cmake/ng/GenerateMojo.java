@@ -20,11 +20,12 @@ import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.cmake.ng.Utils.OutputBufferThread;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -80,17 +81,249 @@ public class GenerateMojo extends AbstractMojo {
    */
   private Map<String, String> vars;
 
+  /**
+   * Directory in which to share toolchain detection results between build
+   * directories.
+   *
+   * When this is set, a fresh build directory is seeded with the compiler
+   * identification and check results from an earlier build with the same
+   * compilers, CMake version, vars and env, instead of CMake probing for them
+   * all again.  See ToolchainCache for details.
+   *
+   * @parameter expression="${toolchainCache}"
+   */
+  private File toolchainCache;
+
+  /**
+   * If true, set up the build for compile time analysis.
+   *
+   * This exports compile_commands.json, and if the compiler supports it,
+   * adds -ftime-trace to the C and C++ flags so that the compiler writes a
+   * time trace for each translation unit.  Otherwise, a script which times
+   * each compile is set as the compiler launcher, wrapping any launcher
+   * already configured.  Set analyze on the compile goal as well to get a
+   * report of the most expensive headers and translation units.
+   *
+   * The flag is added to any CFLAGS or CXXFLAGS in the environment.  Since
+   * CMake only reads those when it creates the cache, an existing build
+   * directory keeps the flags it was configured with, and needs to be cleaned
+   * before it will produce time traces.  For the same reason, turning
+   * analyze off again does not remove -ftime-trace from a build directory
+   * that was configured with it; clean the directory to drop it.  The timing
+   * launcher, on the other hand, is removed from the cached launchers when
+   * analyze is off, leaving any other launcher in place.
+   *
+   * @parameter expression="${analyze}" default-value="false"
+   */
+  private boolean analyze;
+
   public void execute() throws MojoExecutionException {
     Utils.validatePlatform();
+    Map<String, String> cmakeVars = vars;
+    if (analyze) {
+      cmakeVars = getAnalysisVars(vars, env, output);
+    } else {
+      removeTimer(output);
+    }
+    runCMake(source, output, cmakeVars, env, toolchainCache);
+  }
+
+  /**
+   * Returns true if a compiler accepts the given flag.
+   */
+  private static boolean compilerSupports(File compiler, String lang,
+      String flag, Map<String, String> env) {
+    List<String> cmd = new LinkedList<String>();
+    cmd.add(compiler.getAbsolutePath());
+    cmd.add(flag);
+    cmd.add("-x");
+    cmd.add(lang.equals("C") ? "c" : "c++");
+    cmd.add("-E");
+    cmd.add("/dev/null");
+    return Utils.getCommandOutput(cmd, env) != null;
+  }
+
+  /**
+   * Get the value of a variable in an existing CMakeCache.txt, or null.
+   */
+  private static String getCachedVar(File output, String name)
+      throws IOException {
+    File cmakeCache = new File(output, "CMakeCache.txt");
+    if (!cmakeCache.exists()) {
+      return null;
+    }
+    for (String line : Utils.readFile(cmakeCache).split("\n")) {
+      int idx = line.indexOf('=');
+      int typeIdx = line.indexOf(':');
+      if ((idx > 0) && (typeIdx > 0) && (typeIdx < idx) &&
+          line.substring(0, typeIdx).equals(name)) {
+        return line.substring(idx + 1);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Remove the compile timer from the launchers cached in a build directory.
+   *
+   * The launchers are rewritten in CMakeCache.txt directly rather than with
+   * -D, since a launcher that was only the timer has to become empty, and we
+   * never pass empty variables to CMake.
+   */
+  static void removeTimer(File output) throws MojoExecutionException {
+    File cmakeCache = new File(output, "CMakeCache.txt");
+    if (!cmakeCache.exists()) {
+      return;
+    }
+    String timerPath =
+        new File(output, CompileReport.TIMER_NAME).getAbsolutePath();
+    try {
+      String[] lines = Utils.readFile(cmakeCache).split("\n", -1);
+      boolean changed = false;
+      for (int i = 0; i < lines.length; i++) {
+        String line = lines[i];
+        int idx = line.indexOf('=');
+        int typeIdx = line.indexOf(':');
+        if ((idx < 0) || (typeIdx < 0) || (typeIdx > idx)) {
+          continue;
+        }
+        String name = line.substring(0, typeIdx);
+        String value = line.substring(idx + 1);
+        if ((!name.equals("CMAKE_C_COMPILER_LAUNCHER")) &&
+            (!name.equals("CMAKE_CXX_COMPILER_LAUNCHER"))) {
+          continue;
+        }
+        if (!value.startsWith(timerPath)) {
+          continue;
+        }
+        value = value.substring(timerPath.length());
+        if (value.startsWith(";")) {
+          value = value.substring(1);
+        }
+        lines[i] = line.substring(0, idx + 1) + value;
+        changed = true;
+      }
+      if (!changed) {
+        return;
+      }
+      System.out.println("Removing the compile timer from the compiler " +
+          "launchers in " + cmakeCache);
+      StringBuilder bld = new StringBuilder();
+      String prefix = "";
+      for (String line : lines) {
+        bld.append(prefix).append(line);
+        prefix = "\n";
+      }
+      File tmp = new File(output, "CMakeCache.txt.tmp");
+      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+          new FileOutputStream(tmp), "UTF-8"));
+      try {
+        writer.write(bld.toString());
+      } finally {
+        writer.close();
+      }
+      if (!tmp.renameTo(cmakeCache)) {
+        throw new IOException("Failed to rename " + tmp + " to " +
+            cmakeCache);
+      }
+    } catch (IOException e) {
+      throw new MojoExecutionException("Error removing the compile timer " +
+          "from " + cmakeCache, e);
+    }
+  }
+
+  /**
+   * Get the CMake variables to use for compile time analysis.
+   */
+  static Map<String, String> getAnalysisVars(Map<String, String> vars,
+      Map<String, String> env, File output) throws MojoExecutionException {
+    Map<String, String> analysisVars = new HashMap<String, String>();
+    if (vars != null) {
+      analysisVars.putAll(vars);
+    }
+    analysisVars.put("CMAKE_EXPORT_COMPILE_COMMANDS", "ON");
+    File timer = null;
+    for (String lang : new String[] { "C", "CXX" }) {
+      File compiler = Utils.findCompiler(lang, vars, env);
+      if ((compiler == null) ||
+          (!compilerSupports(compiler, lang, "-ftime-trace", env))) {
+        System.out.println("The " + lang + " compiler does not support " +
+            "-ftime-trace.  Timing each " + lang + " compile with a " +
+            "compiler launcher instead.");
+        String launcherVar = "CMAKE_" + lang + "_COMPILER_LAUNCHER";
+        try {
+          if (timer == null) {
+            timer = CompileReport.writeTimer(output);
+          }
+          // Run any launcher the user has, such as ccache, inside the timer.
+          String launcher = analysisVars.get(launcherVar);
+          if (launcher == null) {
+            launcher = getCachedVar(output, launcherVar);
+          }
+          String timerPath = timer.getAbsolutePath();
+          if ((launcher == null) || launcher.equals("")) {
+            launcher = timerPath;
+          } else if (!launcher.startsWith(timerPath)) {
+            launcher = timerPath + ";" + launcher;
+          }
+          analysisVars.put(launcherVar, launcher);
+        } catch (IOException e) {
+          throw new MojoExecutionException("Error setting up the compile " +
+              "timer in " + output, e);
+        }
+        continue;
+      }
+      // If the user forces the flags with a var, we add to that.  Otherwise
+      // we use the _INIT var, which CMake combines with CFLAGS or CXXFLAGS
+      // from the environment when it first creates the cache, and which
+      // never overwrites flags already in the cache.
+      String flagsVar = "CMAKE_" + lang + "_FLAGS";
+      if ((vars == null) || (vars.get(flagsVar) == null) ||
+          vars.get(flagsVar).equals("")) {
+        flagsVar = flagsVar + "_INIT";
+      }
+      String flags = analysisVars.get(flagsVar);
+      analysisVars.put(flagsVar, ((flags == null) || flags.equals("")) ?
+          "-ftime-trace" : (flags + " -ftime-trace"));
+    }
+    return analysisVars;
+  }
+
+  /**
+   * Run CMake to create (or refresh) the build directory in output.
+   *
+   * This is shared with the goals that generate several build configurations
+   * at once, so it must not depend on any Mojo state.
+   */
+  static void runCMake(File source, File output, Map<String, String> vars,
+      Map<String, String> env, File toolchainCache)
+      throws MojoExecutionException {
     Utils.validateParams(output, source);
 
     output.mkdirs();
     List<String> cmd = new LinkedList<String>();
     cmd.add("cmake");
+    ToolchainCache cache = null;
+    if ((toolchainCache != null) &&
+        (!new File(output, "CMakeCache.txt").exists())) {
+      cache = new ToolchainCache(toolchainCache, source, vars, env);
+      try {
+        File initCache = cache.seed(output);
+        if (initCache != null) {
+          cmd.add("-C");
+          cmd.add(initCache.getAbsolutePath());
+        }
+      } catch (IOException e) {
+        throw new MojoExecutionException("Error seeding the build " +
+            "directory from the toolchain cache " + toolchainCache, e);
+      }
+    }
     cmd.add(source.getAbsolutePath());
-    for (Map.Entry<String, String> entry : vars.entrySet()) {
-      if ((entry.getValue() != null) && (!entry.getValue().equals(""))) {
-        cmd.add("-D" + entry.getKey() + "=" + entry.getValue());
+    if (vars != null) {
+      for (Map.Entry<String, String> entry : vars.entrySet()) {
+        if ((entry.getValue() != null) && (!entry.getValue().equals(""))) {
+          cmd.add("-D" + entry.getKey() + "=" + entry.getValue());
+        }
       }
     }
     cmd.add("-G");
@@ -106,7 +339,9 @@ public class GenerateMojo extends AbstractMojo {
     ProcessBuilder pb = new ProcessBuilder(cmd);
     pb.directory(output);
     pb.redirectErrorStream(true);
-    Utils.addEnvironment(pb, env);
+    if (env != null) {
+      Utils.addEnvironment(pb, env);
+    }
     Process proc = null;
     OutputBufferThread outThread = null;
     int retCode = -1;
@@ -116,10 +351,22 @@ public class GenerateMojo extends AbstractMojo {
       outThread.start();
 
       retCode = proc.waitFor();
+      // Let the output thread drain the pipe before Process#destroy closes
+      // it, so that we don't lose the end of the output.
+      outThread.join();
       if (retCode != 0) {
         throw new MojoExecutionException("CMake failed with error code " +
             retCode);
       }
+      if (cache != null) {
+        try {
+          cache.store(output);
+        } catch (IOException e) {
+          // The build itself is fine, so this is not fatal.
+          System.err.println("Failed to save toolchain detection results " +
+              "to " + toolchainCache + ": " + e);
+        }
+      }
     } catch (IOException e) {
       throw new MojoExecutionException("Error executing CMake", e);
     } catch (InterruptedException e) {
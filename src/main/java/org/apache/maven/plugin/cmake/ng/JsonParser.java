@@ -0,0 +1,198 @@
+package org.apache.maven.plugin.cmake.ng;
+
+/*
+ * Copyright 2012 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal JSON parser, for reading the files that CMake and the compilers
+ * write (compile_commands.json and -ftime-trace output).
+ *
+ * Objects are returned as Maps, arrays as Lists, numbers as Doubles, and
+ * strings, booleans and null as themselves.  We don't want to drag in a JSON
+ * library just for this.
+ */
+public class JsonParser {
+  private final String text;
+  private int pos;
+
+  private JsonParser(String text) {
+    this.text = text;
+    this.pos = 0;
+  }
+
+  /**
+   * Parse a JSON document.
+   */
+  public static Object parse(String text) throws IOException {
+    JsonParser parser = new JsonParser(text);
+    Object val = parser.parseValue();
+    parser.skipWhitespace();
+    if (parser.pos != text.length()) {
+      throw parser.error("trailing garbage");
+    }
+    return val;
+  }
+
+  private IOException error(String msg) {
+    return new IOException("JSON parse error at offset " + pos + ": " + msg);
+  }
+
+  private void skipWhitespace() {
+    while ((pos < text.length()) &&
+        Character.isWhitespace(text.charAt(pos))) {
+      pos++;
+    }
+  }
+
+  private void expect(char c) throws IOException {
+    skipWhitespace();
+    if ((pos >= text.length()) || (text.charAt(pos) != c)) {
+      throw error("expected '" + c + "'");
+    }
+    pos++;
+  }
+
+  private boolean consume(char c) {
+    skipWhitespace();
+    if ((pos < text.length()) && (text.charAt(pos) == c)) {
+      pos++;
+      return true;
+    }
+    return false;
+  }
+
+  private boolean consumeWord(String word) {
+    if (text.startsWith(word, pos)) {
+      pos += word.length();
+      return true;
+    }
+    return false;
+  }
+
+  private Object parseValue() throws IOException {
+    skipWhitespace();
+    if (pos >= text.length()) {
+      throw error("unexpected end of input");
+    }
+    char c = text.charAt(pos);
+    if (c == '{') {
+      return parseObject();
+    } else if (c == '[') {
+      return parseArray();
+    } else if (c == '"') {
+      return parseString();
+    } else if (consumeWord("true")) {
+      return Boolean.TRUE;
+    } else if (consumeWord("false")) {
+      return Boolean.FALSE;
+    } else if (consumeWord("null")) {
+      return null;
+    }
+    return parseNumber();
+  }
+
+  private Map<String, Object> parseObject() throws IOException {
+    Map<String, Object> obj = new LinkedHashMap<String, Object>();
+    expect('{');
+    if (consume('}')) {
+      return obj;
+    }
+    do {
+      skipWhitespace();
+      String key = parseString();
+      expect(':');
+      obj.put(key, parseValue());
+    } while (consume(','));
+    expect('}');
+    return obj;
+  }
+
+  private List<Object> parseArray() throws IOException {
+    List<Object> arr = new ArrayList<Object>();
+    expect('[');
+    if (consume(']')) {
+      return arr;
+    }
+    do {
+      arr.add(parseValue());
+    } while (consume(','));
+    expect(']');
+    return arr;
+  }
+
+  private String parseString() throws IOException {
+    if ((pos >= text.length()) || (text.charAt(pos) != '"')) {
+      throw error("expected a string");
+    }
+    pos++;
+    StringBuilder bld = new StringBuilder();
+    while (true) {
+      if (pos >= text.length()) {
+        throw error("unterminated string");
+      }
+      char c = text.charAt(pos++);
+      if (c == '"') {
+        return bld.toString();
+      } else if (c != '\\') {
+        bld.append(c);
+        continue;
+      }
+      if (pos >= text.length()) {
+        throw error("unterminated string");
+      }
+      char esc = text.charAt(pos++);
+      switch (esc) {
+      case 'b': bld.append('\b'); break;
+      case 'f': bld.append('\f'); break;
+      case 'n': bld.append('\n'); break;
+      case 'r': bld.append('\r'); break;
+      case 't': bld.append('\t'); break;
+      case 'u':
+        if (pos + 4 > text.length()) {
+          throw error("truncated unicode escape");
+        }
+        try {
+          bld.append((char)Integer.parseInt(text.substring(pos, pos + 4), 16));
+        } catch (NumberFormatException e) {
+          throw error("bad unicode escape");
+        }
+        pos += 4;
+        break;
+      default: bld.append(esc); break;
+      }
+    }
+  }
+
+  private Double parseNumber() throws IOException {
+    int start = pos;
+    while ((pos < text.length()) &&
+        ("+-0123456789.eE".indexOf(text.charAt(pos)) >= 0)) {
+      pos++;
+    }
+    try {
+      return Double.valueOf(text.substring(start, pos));
+    } catch (NumberFormatException e) {
+      pos = start;
+      throw error("expected a value");
+    }
+  }
+}
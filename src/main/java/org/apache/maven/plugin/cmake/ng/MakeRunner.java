@@ -0,0 +1,238 @@
+package org.apache.maven.plugin.cmake.ng;
+
+/*
+ * Copyright 2012 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.cmake.ng.Utils.OutputStreamThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs make in a build directory.
+ *
+ * This is shared by the compile goal and the goals that compile several build
+ * configurations at once.
+ */
+public class MakeRunner {
+  private final File output;
+  private String target;
+  private int jobs;
+  private Map<String, String> env;
+  private long memoryReserve;
+  private long memoryPerJob;
+  private boolean adjustJobs = true;
+  private String name;
+  private boolean streamOutput;
+  private long progressIntervalMs = 10000;
+  private boolean failFast;
+
+  public MakeRunner(File output) {
+    this.output = output;
+  }
+
+  /**
+   * Set the make target to build, or null for the default target.
+   */
+  public void setTarget(String target) {
+    this.target = target;
+  }
+
+  /**
+   * Set the number of parallel make jobs, or 0 to not pass -j at all.
+   */
+  public void setJobs(int jobs) {
+    this.jobs = jobs;
+  }
+
+  /**
+   * Set extra environment variables for make.
+   */
+  public void setEnv(Map<String, String> env) {
+    this.env = env;
+  }
+
+  /**
+   * Set the memory to keep available, and the memory each job is expected
+   * to use, both in megabytes.
+   *
+   * The job count is reduced to what available memory supports when make
+   * starts (see MemoryGovernor#getEffectiveJobs), and while make runs, jobs
+   * are paused whenever available memory drops below the reserve (see
+   * MemoryGovernor.JobThrottle).
+   */
+  public void setMemoryLimits(long memoryReserve, long memoryPerJob) {
+    this.memoryReserve = memoryReserve;
+    this.memoryPerJob = memoryPerJob;
+  }
+
+  /**
+   * Set whether to reduce the job count to what available memory supports
+   * before starting make.  Goals which split one job count between several
+   * builds do that once for all of them instead.
+   */
+  public void setAdjustJobs(boolean adjustJobs) {
+    this.adjustJobs = adjustJobs;
+  }
+
+  /**
+   * Set a name used to prefix every line of output, so that the output of
+   * concurrent builds can be told apart.
+   */
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Set whether all of make's stdout should be printed as it arrives.
+   * Otherwise, stdout is only printed if make fails, and we print periodic
+   * progress reports instead.  stderr is always printed as it arrives.
+   */
+  public void setStreamOutput(boolean streamOutput) {
+    this.streamOutput = streamOutput;
+  }
+
+  /**
+   * Set the minimum interval between progress reports.
+   */
+  public void setProgressIntervalMs(long progressIntervalMs) {
+    this.progressIntervalMs = progressIntervalMs;
+  }
+
+  /**
+   * Set whether to terminate the whole build as soon as the first compiler
+   * error is seen, rather than letting the other make jobs carry on.
+   */
+  public void setFailFast(boolean failFast) {
+    this.failFast = failFast;
+  }
+
+  public void run() throws MojoExecutionException {
+    int effectiveJobs = adjustJobs ?
+        MemoryGovernor.getEffectiveJobs(jobs, memoryReserve, memoryPerJob) :
+        jobs;
+    List<String> cmd = new LinkedList<String>();
+    cmd.add("make");
+    cmd.add("VERBOSE=1");
+    if (effectiveJobs > 0) {
+      cmd.add("-j" + effectiveJobs);
+    }
+    if (target != null) {
+      cmd.add(target);
+    }
+    ProcessBuilder pb = new ProcessBuilder(cmd);
+    pb.directory(output);
+    if (env != null) {
+      Utils.addEnvironment(pb, env);
+    }
+    Process proc = null;
+    int retCode = -1;
+    OutputStreamThread stdoutThread = null, stderrThread = null;
+    MemoryGovernor.JobThrottle throttle = null;
+    try {
+      proc = pb.start();
+      MemoryGovernor.register(proc);
+      int pid = Utils.getPid(proc);
+      if ((memoryReserve > 0) && (pid > 0)) {
+        throttle = new MemoryGovernor.JobThrottle(pid, memoryReserve,
+            memoryPerJob);
+        throttle.start();
+      }
+      stdoutThread = new OutputStreamThread(proc.getInputStream(), name,
+          streamOutput, progressIntervalMs);
+      // We always print stderr, since it contains the compiler warning
+      // messages.  These are interesting even if compilation succeeded.
+      stderrThread = new OutputStreamThread(proc.getErrorStream(), name,
+          true, progressIntervalMs);
+      if (failFast) {
+        final Process buildProc = proc;
+        final MemoryGovernor.JobThrottle buildThrottle = throttle;
+        // Both streams share this callback, so make sure we only abort once.
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        Runnable abort = new Runnable() {
+          public void run() {
+            if (!aborted.compareAndSet(false, true)) {
+              return;
+            }
+            System.out.println("Aborting the build after the first " +
+                "compiler error.");
+            Utils.killProcessTree(buildProc);
+            if (buildThrottle != null) {
+              // Paused jobs only act on the signal once they're continued.
+              buildThrottle.interrupt();
+            }
+          }
+        };
+        stdoutThread.setErrorCallback(abort);
+        stderrThread.setErrorCallback(abort);
+      }
+      stdoutThread.start();
+      stderrThread.start();
+      retCode = proc.waitFor();
+      if (retCode != 0) {
+        String firstError = stderrThread.getFirstError();
+        if (firstError == null) {
+          firstError = stdoutThread.getFirstError();
+        }
+        if (failFast && (firstError != null)) {
+          throw new MojoExecutionException("make was aborted after the " +
+              "first error: " + firstError);
+        }
+        throw new MojoExecutionException("make failed with error code " +
+            retCode);
+      }
+    } catch (InterruptedException e) {
+      throw new MojoExecutionException("Interrupted during Process#waitFor", e);
+    } catch (IOException e) {
+      throw new MojoExecutionException("Error executing make", e);
+    } finally {
+      if (throttle != null) {
+        throttle.interrupt();
+        try {
+          throttle.join();
+        } catch (InterruptedException e) {
+          e.printStackTrace();
+        }
+      }
+      if (stdoutThread != null) {
+        try {
+          stdoutThread.join();
+        } catch (InterruptedException e) {
+          e.printStackTrace();
+        }
+        if (retCode != 0) {
+          stdoutThread.printBufs();
+        }
+      }
+      if (stderrThread != null) {
+        try {
+          stderrThread.join();
+        } catch (InterruptedException e) {
+          e.printStackTrace();
+        }
+      }
+      if (proc != null) {
+        proc.destroy();
+        MemoryGovernor.unregister(proc);
+      }
+    }
+  }
+}
@@ -0,0 +1,333 @@
+package org.apache.maven.plugin.cmake.ng;
+
+/*
+ * Copyright 2012 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Admission control for memory-hungry child processes.
+ *
+ * When the machine runs short of memory, swapping or a visit from the OOM
+ * killer is far slower than simply running fewer things at once.  Before we
+ * start a new test, or decide how many make jobs to run, we check how much
+ * memory is available according to /proc/meminfo and hold back if that would
+ * eat into the configured reserve.  While make runs, a JobThrottle keeps
+ * checking, and pauses compile jobs whenever memory drops below the reserve.
+ *
+ * Mojos may run concurrently within one Maven JVM (for example, with
+ * 'mvn -T'), so every child process we start is registered here.  That lets
+ * us avoid waiting forever when none of our children are running.
+ */
+public class MemoryGovernor {
+  /**
+   * How long to sleep between checks while waiting for memory.
+   */
+  private static final long POLL_MS = 1000;
+
+  /**
+   * Child processes that are currently running, mapped to their pids.
+   */
+  private static final Map<Process, Integer> children =
+      new IdentityHashMap<Process, Integer>();
+
+  /**
+   * Register a child process which has just been started.
+   */
+  static void register(Process proc) {
+    int pid = Utils.getPid(proc);
+    synchronized (children) {
+      children.put(proc, pid);
+    }
+  }
+
+  /**
+   * Unregister a child process which has exited or been destroyed.
+   */
+  static void unregister(Process proc) {
+    synchronized (children) {
+      children.remove(proc);
+    }
+  }
+
+  /**
+   * Get the amount of memory available for starting new processes.
+   *
+   * Older kernels don't provide MemAvailable, so we approximate it from the
+   * free memory plus the page cache.
+   *
+   * @return available memory in kilobytes, or -1 if it could not be
+   *         determined.
+   */
+  static long getAvailableKb() {
+    String meminfo = Utils.readProcFile(new File("/proc/meminfo"));
+    if (meminfo == null) {
+      return -1;
+    }
+    long available = -1, free = -1, buffers = 0, cached = 0;
+    for (String line : meminfo.split("\n")) {
+      String[] parts = line.trim().split("\\s+");
+      if (parts.length < 2) {
+        continue;
+      }
+      long val;
+      try {
+        val = Long.parseLong(parts[1]);
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      if (parts[0].equals("MemAvailable:")) {
+        available = val;
+      } else if (parts[0].equals("MemFree:")) {
+        free = val;
+      } else if (parts[0].equals("Buffers:")) {
+        buffers = val;
+      } else if (parts[0].equals("Cached:")) {
+        cached = val;
+      }
+    }
+    if (available >= 0) {
+      return available;
+    }
+    if (free >= 0) {
+      return free + buffers + cached;
+    }
+    return -1;
+  }
+
+  private static int numChildren() {
+    synchronized (children) {
+      return children.size();
+    }
+  }
+
+  /**
+   * Wait until there is enough available memory to start a new process.
+   *
+   * We only wait while at least one of our own children is running, since
+   * otherwise nothing we could do would free up memory.  We also give up
+   * waiting after maxWaitSec seconds, and let the caller go ahead anyway.
+   *
+   * @param what         A description of what we are about to start.
+   * @param reserveMb    The amount of memory, in megabytes, which should be
+   *                     left available.  If this is 0, we never wait.
+   * @param maxWaitSec   The maximum number of seconds to wait.
+   */
+  static void awaitAdmission(String what, long reserveMb, int maxWaitSec)
+      throws InterruptedException {
+    if (reserveMb <= 0) {
+      return;
+    }
+    long deadline = System.currentTimeMillis() + (maxWaitSec * 1000L);
+    boolean logged = false;
+    while (true) {
+      long availableKb = getAvailableKb();
+      if ((availableKb < 0) || (availableKb >= reserveMb * 1024)) {
+        break;
+      }
+      if (numChildren() == 0) {
+        System.out.println("Starting " + what + " with only " +
+            (availableKb / 1024) + " MB available, since none of our " +
+            "own processes are running.");
+        break;
+      }
+      if (System.currentTimeMillis() > deadline) {
+        System.out.println("Starting " + what + " with only " +
+            (availableKb / 1024) + " MB available after waiting " +
+            maxWaitSec + " seconds for memory.");
+        break;
+      }
+      if (!logged) {
+        System.out.println("Delaying " + what + ": " + (availableKb / 1024) +
+            " MB available is below the reserve of " + reserveMb + " MB.");
+        logged = true;
+      }
+      Thread.sleep(POLL_MS);
+    }
+  }
+
+  /**
+   * Reduce a make job count to what available memory can support.
+   *
+   * This never raises the job count.  In particular, a job count of 0 or
+   * less, which means that -j is not passed to make at all, is returned
+   * unchanged, since make then runs a single job anyway.
+   *
+   * @param jobs         The requested number of jobs.
+   * @param reserveMb    The amount of memory, in megabytes, which should be
+   *                     left available.  If this is 0, jobs is returned
+   *                     unchanged.
+   * @param perJobMb     The amount of memory, in megabytes, that we expect
+   *                     a single job to use.
+   *
+   * @return the number of jobs to run.  This is at least 1, unless the
+   *         original jobs count was returned unchanged.
+   */
+  static int getEffectiveJobs(int jobs, long reserveMb, long perJobMb) {
+    if ((jobs <= 1) || (reserveMb <= 0) || (perJobMb <= 0)) {
+      return jobs;
+    }
+    long availableKb = getAvailableKb();
+    if (availableKb < 0) {
+      return jobs;
+    }
+    long supported = ((availableKb / 1024) - reserveMb) / perJobMb;
+    int effective = (int)Math.max(1, Math.min(jobs, supported));
+    if (effective < jobs) {
+      System.out.println("Reducing make jobs from " + jobs + " to " +
+          effective + ": " + (availableKb / 1024) + " MB available, " +
+          reserveMb + " MB reserved, " + perJobMb + " MB per job.");
+    }
+    return effective;
+  }
+
+  /**
+   * Pauses the newest jobs of a running make while available memory is below
+   * the reserve, and resumes them once it recovers.
+   *
+   * make fixes its job count when it starts, so getEffectiveJobs can only
+   * size the build for the memory available at that moment.  Jobs can use
+   * more memory than expected, and other processes come and go, so while make
+   * runs we check available memory every POLL_MS.  When it is below the
+   * reserve, we stop the most recently started job with SIGSTOP, so that the
+   * older ones can finish and free their memory.  Once available memory is
+   * back above the reserve plus a margin, we continue the paused jobs, the
+   * oldest first.  At least one job is always left running, so that the build
+   * keeps making progress.
+   *
+   * Only processes without children of their own are paused: those are the
+   * compilers, assemblers and linkers doing the actual work, while make and
+   * the compiler drivers just wait for them.
+   */
+  static class JobThrottle extends Thread {
+    private final int pid;
+    private final long reserveKb;
+    private final long resumeKb;
+
+    /**
+     * The processes we have paused, in the order we paused them.
+     */
+    private final List<Integer> paused = new ArrayList<Integer>();
+
+    /**
+     * @param pid          The pid of make.
+     * @param reserveMb    The amount of memory, in megabytes, to keep
+     *                     available.
+     * @param marginMb     How far above the reserve available memory has to
+     *                     be before we resume a job, in megabytes.
+     */
+    JobThrottle(int pid, long reserveMb, long marginMb) {
+      this.pid = pid;
+      this.reserveKb = reserveMb * 1024;
+      this.resumeKb = (reserveMb + Math.max(0, marginMb)) * 1024;
+      setDaemon(true);
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          Thread.sleep(POLL_MS);
+          check();
+        }
+      } catch (InterruptedException e) {
+        // We've been told to stop.
+      } finally {
+        resumeAll();
+      }
+    }
+
+    private synchronized void check() {
+      long availableKb = getAvailableKb();
+      if ((availableKb < 0) ||
+          ((availableKb >= reserveKb) && paused.isEmpty())) {
+        return;
+      }
+      // Find the running jobs, and the newest of them.
+      Set<Integer> parents = new HashSet<Integer>();
+      Map<Integer, Long> startTimes = new HashMap<Integer, Long>();
+      for (int desc : Utils.getDescendantPids(pid)) {
+        // starttime is field 22 in proc(5).
+        String[] stat = Utils.readProcStat(desc);
+        if ((stat == null) || (stat.length < 20)) {
+          continue;
+        }
+        try {
+          parents.add(Integer.valueOf(stat[1]));
+          startTimes.put(desc, Long.valueOf(stat[19]));
+        } catch (NumberFormatException e) {
+          continue;
+        }
+      }
+      int running = 0, newest = -1;
+      long newestStart = -1;
+      for (Map.Entry<Integer, Long> entry : startTimes.entrySet()) {
+        if (parents.contains(entry.getKey()) ||
+            paused.contains(entry.getKey())) {
+          continue;
+        }
+        running++;
+        if (entry.getValue() > newestStart) {
+          newest = entry.getKey();
+          newestStart = entry.getValue();
+        }
+      }
+      if ((availableKb < reserveKb) && (running > 1)) {
+        System.out.println("Pausing process " + newest + ": " +
+            (availableKb / 1024) + " MB available is below the reserve " +
+            "of " + (reserveKb / 1024) + " MB.");
+        signal("-STOP", Collections.singletonList(newest));
+        paused.add(newest);
+      } else if ((!paused.isEmpty()) &&
+          ((availableKb >= resumeKb) || (running == 0))) {
+        // If every other job has finished, waiting any longer won't free up
+        // any memory, so resume a job anyway.
+        int oldest = paused.remove(paused.size() - 1);
+        System.out.println("Resuming process " + oldest + ": " +
+            (availableKb / 1024) + " MB available.");
+        signal("-CONT", Collections.singletonList(oldest));
+      }
+    }
+
+    /**
+     * Resume every job we have paused.
+     *
+     * This must be done before make is terminated, since a stopped process
+     * doesn't act on SIGTERM until it is continued.
+     */
+    synchronized void resumeAll() {
+      if (!paused.isEmpty()) {
+        signal("-CONT", paused);
+        paused.clear();
+      }
+    }
+
+    private static void signal(String signal, List<Integer> pids) {
+      List<String> targets = new ArrayList<String>();
+      for (int p : pids) {
+        targets.add(String.valueOf(p));
+      }
+      Utils.sendSignal(signal, targets);
+    }
+  }
+}
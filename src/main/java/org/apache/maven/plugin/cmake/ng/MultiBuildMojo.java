@@ -0,0 +1,347 @@
+package org.apache.maven.plugin.cmake.ng;
+
+/*
+ * Copyright 2012 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Goal which generates and builds several named configurations concurrently.
+ *
+ * This is equivalent to running the generate and compile goals once per
+ * configuration, except that the configurations are built at the same time
+ * and share a single budget of make jobs.  The budget is split between the
+ * configurations up front; see jobs.
+ *
+ * @goal multi-build
+ * @phase compile
+ */
+public class MultiBuildMojo extends AbstractMojo {
+  /**
+   * Location of the build products.  Each configuration is built in a
+   * subdirectory of this directory.
+   *
+   * @parameter expression="${output}"
+   * @required
+   */
+  private File output;
+
+  /**
+   * Location of the source files.
+   * This should be where the sources are checked in.
+   *
+   * @parameter expression="${source}"
+   * @required
+   */
+  private File source;
+
+  /**
+   * The configurations to build.
+   *
+   * @parameter
+   * @required
+   */
+  private List<BuildConfiguration> buildConfigurations;
+
+  /**
+   * Environment variables shared by all configurations.
+   *
+   * @parameter expression="${env}"
+   */
+  private Map<String, String> env;
+
+  /**
+   * CMake cached variables shared by all configurations.
+   *
+   * @parameter expression="${vars}"
+   */
+  private Map<String, String> vars;
+
+  /**
+   * Directory in which to share toolchain detection results between build
+   * directories.  See GenerateMojo#toolchainCache.
+   *
+   * @parameter expression="${toolchainCache}"
+   */
+  private File toolchainCache;
+
+  /**
+   * Build target.
+   *
+   * @parameter expression="${target}"
+   */
+  private String target;
+
+  /**
+   * Total number of make jobs shared between all configurations.
+   *
+   * If this is 0, we use the number of available processors.
+   *
+   * The total is split evenly between the configurations that run at once,
+   * and each one's make keeps its share for the whole build.  The split is
+   * fixed: when a configuration finishes, or is only running CMake or a
+   * single link, its jobs are not handed to the others, so towards the end
+   * of a build fewer than jobs compiles may be running.  If there are more
+   * configurations than jobs, each gets one job and at most jobs of them
+   * run at once.  Sharing the budget as the builds go would need a single
+   * make jobserver spanning every configuration's make.
+   *
+   * @parameter expression="${jobs}" default-value="0"
+   */
+  private int jobs;
+
+  /**
+   * Amount of memory, in megabytes, to keep available while compiling.
+   *
+   * If this is greater than 0, the total number of make jobs, across all
+   * configurations, is reduced so that memoryPerJob megabytes for each job
+   * still leaves this much memory free.  This is decided once, before any
+   * configuration starts; after that, each configuration's make pauses its
+   * newest jobs whenever available memory drops below the reserve, and
+   * resumes them once it is back above the reserve plus memoryPerJob.
+   *
+   * @parameter expression="${memoryReserve}" default-value="0"
+   */
+  private long memoryReserve;
+
+  /**
+   * Amount of memory, in megabytes, that we expect each make job to use.
+   *
+   * @parameter expression="${memoryPerJob}" default-value="1024"
+   */
+  private long memoryPerJob;
+
+  /**
+   * If true, print all of make's output as it arrives.  Each line is
+   * prefixed with the name of its configuration.
+   *
+   * @parameter expression="${streamOutput}" default-value="false"
+   */
+  private boolean streamOutput;
+
+  /**
+   * Minimum number of seconds between progress reports.
+   *
+   * @parameter expression="${progressInterval}" default-value="10"
+   */
+  private int progressInterval;
+
+  /**
+   * If true, terminate a configuration's build as soon as its first compiler
+   * error is seen.
+   *
+   * @parameter expression="${failFast}" default-value="false"
+   */
+  private boolean failFast;
+
+  /**
+   * If true, set up each configuration for compile time analysis, and write
+   * a report of its most expensive headers and translation units.  See
+   * GenerateMojo#analyze, including what is left behind when it is turned
+   * off again.
+   *
+   * @parameter expression="${analyze}" default-value="false"
+   */
+  private boolean analyze;
+
+  /**
+   * The outcome of building a single configuration.
+   */
+  private static class ConfigurationResult {
+    private final String name;
+    private long generateMs = -1;
+    private long compileMs = -1;
+    private MojoExecutionException error;
+
+    public ConfigurationResult(String name) {
+      this.name = name;
+    }
+  }
+
+  /**
+   * Generates and compiles a single configuration.
+   */
+  private class ConfigurationBuilder implements Runnable {
+    private final BuildConfiguration conf;
+    private final ConfigurationResult result;
+    private final int makeJobs;
+
+    public ConfigurationBuilder(BuildConfiguration conf,
+        ConfigurationResult result, int makeJobs) {
+      this.conf = conf;
+      this.result = result;
+      this.makeJobs = makeJobs;
+    }
+
+    public void run() {
+      File confOutput = conf.getOutput(output);
+      Map<String, String> confEnv = merge(env, conf.getEnv());
+      try {
+        long start = System.currentTimeMillis();
+        Map<String, String> confVars = merge(vars, conf.getVars());
+        if (analyze) {
+          confVars = GenerateMojo.getAnalysisVars(confVars, confEnv,
+              confOutput);
+        } else {
+          GenerateMojo.removeTimer(confOutput);
+        }
+        GenerateMojo.runCMake(source, confOutput, confVars, confEnv,
+            toolchainCache);
+        long generated = System.currentTimeMillis();
+        result.generateMs = generated - start;
+        MakeRunner make = new MakeRunner(confOutput);
+        make.setTarget(target);
+        make.setJobs(makeJobs);
+        make.setMemoryLimits(memoryReserve, memoryPerJob);
+        make.setAdjustJobs(false);
+        make.setEnv(confEnv);
+        make.setName(conf.getName());
+        make.setStreamOutput(streamOutput);
+        make.setProgressIntervalMs(progressInterval * 1000L);
+        make.setFailFast(failFast);
+        make.run();
+        result.compileMs = System.currentTimeMillis() - generated;
+        if (analyze) {
+          CompileReport.generate(confOutput);
+        }
+      } catch (MojoExecutionException e) {
+        result.error = e;
+      } catch (IOException e) {
+        result.error = new MojoExecutionException("Error writing the " +
+            "compile analysis report for configuration " + conf.getName(), e);
+      } catch (RuntimeException e) {
+        result.error = new MojoExecutionException("Unexpected error " +
+            "building configuration " + conf.getName(), e);
+      }
+    }
+  }
+
+  private static Map<String, String> merge(Map<String, String> base,
+      Map<String, String> overrides) {
+    Map<String, String> merged = new HashMap<String, String>();
+    if (base != null) {
+      merged.putAll(base);
+    }
+    if (overrides != null) {
+      merged.putAll(overrides);
+    }
+    return merged;
+  }
+
+  /**
+   * Validate the parameters that the user has passed.
+   */
+  private void validateParameters() throws MojoExecutionException {
+    if (buildConfigurations.isEmpty()) {
+      throw new MojoExecutionException("You must specify at least one " +
+          "build configuration.");
+    }
+    Set<String> outputs = new HashSet<String>();
+    for (BuildConfiguration conf : buildConfigurations) {
+      if (conf.getName() == null) {
+        throw new MojoExecutionException("Every build configuration " +
+            "must have a name.");
+      }
+      if (!outputs.add(conf.getOutput(output).getAbsolutePath())) {
+        throw new MojoExecutionException("Build configuration " +
+            conf.getName() + " shares its output directory with another " +
+            "configuration.");
+      }
+    }
+  }
+
+  private static String formatMs(long ms) {
+    if (ms < 0) {
+      return "-";
+    }
+    return String.format("%d.%03ds", ms / 1000, ms % 1000);
+  }
+
+  public void execute() throws MojoExecutionException {
+    Utils.validatePlatform();
+    validateParameters();
+
+    int totalJobs = (jobs > 0) ? jobs :
+        Runtime.getRuntime().availableProcessors();
+    // Check memory once for the whole budget.  If each configuration checked
+    // for itself, they would all count the same free memory.
+    totalJobs = MemoryGovernor.getEffectiveJobs(totalJobs, memoryReserve,
+        memoryPerJob);
+    int numThreads = Math.min(totalJobs, buildConfigurations.size());
+    // Split the job budget between the configurations that run at once.
+    // Any remainder goes to the first few configurations.  Each share is
+    // fixed for the whole build; see the jobs parameter.
+    int baseJobs = totalJobs / numThreads;
+    int extraJobs = totalJobs % numThreads;
+
+    List<ConfigurationResult> results = new ArrayList<ConfigurationResult>();
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      int idx = 0;
+      for (BuildConfiguration conf : buildConfigurations) {
+        ConfigurationResult result = new ConfigurationResult(conf.getName());
+        results.add(result);
+        int slot = idx++ % numThreads;
+        int makeJobs = baseJobs + ((slot < extraJobs) ? 1 : 0);
+        executor.execute(new ConfigurationBuilder(conf, result, makeJobs));
+      }
+      executor.shutdown();
+      while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+      }
+    } catch (InterruptedException e) {
+      throw new MojoExecutionException("Interrupted while building " +
+          "configurations", e);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // Report everything together, so that one failure doesn't hide another.
+    List<String> failed = new ArrayList<String>();
+    System.out.println("Build configuration summary:");
+    for (ConfigurationResult result : results) {
+      System.out.println(String.format("  %-20s generate %10s  compile %10s" +
+          "  %s", result.name, formatMs(result.generateMs),
+          formatMs(result.compileMs),
+          (result.error == null) ? "SUCCESS" : "FAILED"));
+      if (result.error != null) {
+        failed.add(result.name);
+      }
+    }
+    for (ConfigurationResult result : results) {
+      if (result.error != null) {
+        System.err.println("Build configuration " + result.name +
+            " failed: " + result.error.getMessage());
+      }
+    }
+    if (!failed.isEmpty()) {
+      throw new MojoExecutionException("Build configurations failed: " +
+          failed);
+    }
+  }
+}
@@ -26,6 +26,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -105,6 +107,105 @@ public class TestMojo extends AbstractMojo {
    */
   private String expectedResult;
   
+  /**
+   * Amount of memory, in megabytes, to keep available when starting the test.
+   *
+   * If this is greater than 0 and less memory than this is available, we
+   * delay starting the test while other processes started by this plugin are
+   * still running.
+   *
+   * @parameter expression="${memoryReserve}" default-value="0"
+   */
+  private long memoryReserve;
+
+  /**
+   * Maximum number of seconds to delay the test while waiting for memory.
+   *
+   * @parameter expression="${memoryWaitTimeout}" default-value="600"
+   */
+  private int memoryWaitTimeout;
+
+  /**
+   * If true, run the test in its own scratch directory.
+   *
+   * The scratch directory is created under scratchRoot, and is used as both
+   * the working directory and TMPDIR of the test.  It is deleted after the
+   * test, unless the test fails and keepScratchOnFailure is set.  Note that
+   * relative paths in args will be resolved against the scratch directory.
+   *
+   * @parameter expression="${scratch}" default-value="false"
+   */
+  private boolean scratch;
+
+  /**
+   * Directory in which to create scratch directories.
+   *
+   * Defaults to the JVM's temporary directory.  Set this to a tmpfs such as
+   * /dev/shm to keep test I/O off the disk.
+   *
+   * @parameter expression="${scratchRoot}"
+   */
+  private File scratchRoot;
+
+  /**
+   * Maximum size of the scratch directory, in megabytes.
+   *
+   * If the test writes more than this, it is terminated and fails with the
+   * status SCRATCH_QUOTA_EXCEEDED.  If this is 0, there is no limit.
+   *
+   * @parameter expression="${scratchQuota}" default-value="0"
+   */
+  private long scratchQuota;
+
+  /**
+   * If true, keep the scratch directory of a failed test for inspection.
+   *
+   * @parameter expression="${keepScratchOnFailure}" default-value="true"
+   */
+  private boolean keepScratchOnFailure;
+
+  /**
+   * How to pin the test to CPUs.
+   *
+   * @parameter expression="${cpuAffinity}" default-value="none"
+   *            Can be either "none", "disjoint", or "exclusive".  With
+   *            "disjoint", the test is pinned with taskset to cpusPerTest
+   *            CPUs which no other pinned test running at the same time is
+   *            using.  "exclusive" does the same, and also dedicates those
+   *            CPUs to this test: it waits for tests with no affinity which
+   *            are already running to finish, and tests with no affinity
+   *            which start while it runs are pinned to the other CPUs.  This
+   *            is useful for benchmarks.  Both modes require taskset.
+   */
+  private String cpuAffinity;
+
+  /**
+   * Number of CPUs to pin the test to, if cpuAffinity is not "none".
+   *
+   * @parameter expression="${cpusPerTest}" default-value="1"
+   */
+  private int cpusPerTest;
+
+  /**
+   * Number of seconds a test may go without producing output or using CPU
+   * before we declare it hung.
+   *
+   * A hung test is terminated with the status HUNG.  Before that, a snapshot
+   * of the kernel stacks of its threads is saved to the results directory as
+   * [testName].stacks.  If this is 0, we only rely on the timeout.
+   *
+   * @parameter expression="${inactivityTimeout}" default-value="0"
+   */
+  private int inactivityTimeout;
+
+  /**
+   * If true, also add a gdb backtrace of every thread of a hung test to the
+   * stack snapshot.  This requires gdb, and permission to attach to the test.
+   *
+   * @parameter expression="${inactivityGdb}" default-value="false"
+   */
+  private boolean inactivityGdb;
+
   /**
    * The Maven Session Object
    *
@@ -114,6 +215,24 @@ public class TestMojo extends AbstractMojo {
    */
   private MavenSession session; 
    
+  /**
+   * How often to check on a running test, in milliseconds.
+   */
+  private static final long POLL_INTERVAL_MS = 1000;
+
+  /**
+   * How long to wait for the test's output to reach end-of-file once the
+   * test has exited or been terminated, in milliseconds.
+   */
+  private static final long DRAIN_TIMEOUT_MS = 5000;
+
+  /**
+   * The CPU time the test had used when we last checked, and the time at
+   * which we saw that it had changed.
+   */
+  private long lastCpuTicks = -1;
+  private long lastCpuActivity = 0;
+
   /**
    * The test thread waits for the process to terminate.
    *
@@ -196,8 +315,190 @@ public class TestMojo extends AbstractMojo {
       throw new MojoExecutionException("expectedResult must be either " +
           "success, failure, or any");
     }
+    if (!(cpuAffinity.equals("none") ||
+        cpuAffinity.equals("disjoint") ||
+        cpuAffinity.equals("exclusive"))) {
+      throw new MojoExecutionException("cpuAffinity must be either " +
+          "none, disjoint, or exclusive");
+    }
+    if (!cpuAffinity.equals("none")) {
+      if (!CpuAllocator.isTasksetAvailable()) {
+        throw new MojoExecutionException("cpuAffinity requires the " +
+            "taskset command, which was not found on the PATH");
+      }
+      int numCpus = CpuAllocator.getAllowedCpus().size();
+      if ((cpusPerTest < 1) || (cpusPerTest > numCpus)) {
+        throw new MojoExecutionException("cpusPerTest must be between 1 " +
+            "and the number of available CPUs, " + numCpus);
+      }
+    }
   }
   
+  /**
+   * Create a scratch directory for this test.
+   */
+  private File createScratchDir() throws MojoExecutionException {
+    File root = scratchRoot;
+    if (root == null) {
+      root = new File(System.getProperty("java.io.tmpdir"));
+    }
+    try {
+      root = root.getCanonicalFile();
+    } catch (IOException e) {
+      throw new MojoExecutionException("error getting canonical path " +
+          "for scratchRoot", e);
+    }
+    File dir = new File(root, "cmake-ng-" + testName + "-" +
+        Long.toHexString(System.nanoTime()));
+    if (!dir.mkdirs()) {
+      throw new MojoExecutionException("Failed to create scratch " +
+          "directory '" + dir + "'!");
+    }
+    return dir;
+  }
+
+  /**
+   * Remove a scratch directory, if there is one.
+   */
+  private static void deleteScratchDir(File scratchDir) {
+    if (scratchDir == null) {
+      return;
+    }
+    try {
+      Utils.recursiveDelete(scratchDir);
+    } catch (IOException e) {
+      System.err.println("Failed to remove scratch directory " +
+          scratchDir + ": " + e);
+    }
+  }
+
+  /**
+   * Get the total size of the files under a directory.
+   *
+   * Symlinks are not followed, since whatever they point to isn't using up
+   * the scratch space.
+   */
+  private static long getDiskUsage(File dir) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return 0;
+    }
+    long total = 0;
+    for (File c : children) {
+      try {
+        if (!c.getCanonicalFile().equals(c.getAbsoluteFile())) {
+          continue;
+        }
+      } catch (IOException e) {
+        // The file may have been removed while we were looking at it.
+        continue;
+      }
+      if (c.isDirectory()) {
+        total += getDiskUsage(c);
+      } else {
+        total += c.length();
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Check on a test which is still running.
+   *
+   * @return null if the test should continue running, or the status to
+   *         record if it should be terminated.
+   */
+  private String checkRunningTest(File scratchDir, Process proc,
+      OutputToFileThread outThread, OutputToFileThread errThread) {
+    if ((scratchDir != null) && (scratchQuota > 0)) {
+      long usage = getDiskUsage(scratchDir);
+      if (usage > scratchQuota * 1024 * 1024) {
+        System.out.println("Test " + testName + " is using " +
+            (usage / (1024 * 1024)) + " MB in its scratch directory, " +
+            "which is more than the quota of " + scratchQuota + " MB.");
+        return "SCRATCH_QUOTA_EXCEEDED";
+      }
+    }
+    if (inactivityTimeout > 0) {
+      long now = System.currentTimeMillis();
+      int pid = Utils.getPid(proc);
+      long cpuTicks = (pid < 0) ? -1 : Utils.getCpuTicks(pid);
+      if ((lastCpuActivity == 0) || (cpuTicks != lastCpuTicks)) {
+        lastCpuTicks = cpuTicks;
+        lastCpuActivity = now;
+      }
+      long lastActivity = Math.max(lastCpuActivity,
+          Math.max(outThread.getLastActivity(), errThread.getLastActivity()));
+      if (now - lastActivity > inactivityTimeout * 1000L) {
+        System.out.println("Test " + testName + " has produced no output " +
+            "and used no CPU for " + inactivityTimeout + " seconds.");
+        if (pid >= 0) {
+          writeStackSnapshot(pid);
+        }
+        return "HUNG";
+      }
+    }
+    return null;
+  }
+
+  private static void appendProcFile(StringBuilder bld, File file) {
+    String contents = Utils.readProcFile(file);
+    bld.append("--- ").append(file).append("\n");
+    bld.append((contents == null) ? "(unavailable)\n" : contents);
+    if ((contents != null) && !contents.endsWith("\n")) {
+      bld.append("\n");
+    }
+  }
+
+  /**
+   * Write a snapshot of the stacks of a hung test and its children to the
+   * results directory.
+   */
+  private void writeStackSnapshot(int pid) {
+    File snapshot = new File(results, testName + ".stacks");
+    List<Integer> pids = new ArrayList<Integer>();
+    pids.add(pid);
+    pids.addAll(Utils.getDescendantPids(pid));
+    StringBuilder bld = new StringBuilder();
+    for (int p : pids) {
+      bld.append("=== process ").append(p).append("\n");
+      File[] tasks = new File("/proc/" + p + "/task").listFiles();
+      if (tasks != null) {
+        for (File task : tasks) {
+          appendProcFile(bld, new File(task, "comm"));
+          appendProcFile(bld, new File(task, "wchan"));
+          // Reading the kernel stack usually requires root.
+          appendProcFile(bld, new File(task, "stack"));
+        }
+      }
+      if (inactivityGdb) {
+        List<String> cmd = new LinkedList<String>();
+        cmd.add("gdb");
+        cmd.add("-p");
+        cmd.add(String.valueOf(p));
+        cmd.add("-batch");
+        cmd.add("-ex");
+        cmd.add("thread apply all bt");
+        String gdbOutput = Utils.getCommandOutput(cmd, null);
+        bld.append("--- gdb backtrace\n");
+        bld.append((gdbOutput == null) ? "(gdb failed)\n" : gdbOutput);
+      }
+    }
+    try {
+      FileOutputStream fos = new FileOutputStream(snapshot);
+      try {
+        fos.write(bld.toString().getBytes("UTF-8"));
+      } finally {
+        fos.close();
+      }
+      System.out.println("Wrote stack snapshot of test " + testName +
+          " to " + snapshot);
+    } catch (IOException e) {
+      System.err.println("Failed to write stack snapshot " + snapshot +
+          ": " + e);
+    }
+  }
+
   private boolean shouldRunTest() throws MojoExecutionException {
     // Were we told to skip all tests?
     String skipTests = session.
@@ -268,6 +569,40 @@ public class TestMojo extends AbstractMojo {
     return true;
   }
   
+  /**
+   * Wait for a thread servicing one of the test's pipes to reach
+   * end-of-file.
+   *
+   * Processes which the test started and left running may still hold the
+   * pipe open.  If the thread hasn't finished after DRAIN_TIMEOUT_MS, we
+   * terminate the test's process group, if it has one, and wait again.  If
+   * that doesn't help either, we give up on the rest of the output rather
+   * than block the build.
+   */
+  private void drainOutput(OutputToFileThread thread, String name,
+      int pgid) {
+    if (thread == null) {
+      return;
+    }
+    try {
+      thread.join(DRAIN_TIMEOUT_MS);
+      if (thread.isAlive() && (pgid > 0)) {
+        System.out.println("Terminating processes left behind by test " +
+            testName + ", which are holding its " + name + " open.");
+        Utils.killProcessGroup(pgid);
+        thread.join(DRAIN_TIMEOUT_MS);
+      }
+    } catch (InterruptedException e) {
+      System.err.println("Interrupted while waiting for the " + name +
+          " of test " + testName);
+      e.printStackTrace(System.err);
+    }
+    if (thread.isAlive()) {
+      System.err.println("Giving up on the " + name + " of test " +
+          testName + ": a process it started is still holding it open.");
+    }
+  }
+
   public void execute() throws MojoExecutionException {
     if (testName == null) {
       testName = binary.getName();
@@ -292,34 +627,92 @@ public class TestMojo extends AbstractMojo {
     if (env != null) {
       Utils.addEnvironment(pb, env);
     }
-    Process proc = null;
+    CpuAllocator.Assignment cpus = null;
+    Process proc = null, startedProc = null;
+    int pgid = -1;
     TestThread testThread = null;
     OutputToFileThread errThread = null, outThread = null;
     int retCode = -1;
     String status = "IN_PROGRESS";
+    String abortStatus = null;
+    boolean completed = false;
     try {
       writeStatusFile(status);
     } catch (IOException e) {
       throw new MojoExecutionException("Error writing the status file", e);
     }
+    File scratchDir = null;
+    if (scratch) {
+      scratchDir = createScratchDir();
+      pb.directory(scratchDir);
+      pb.environment().put("TMPDIR", scratchDir.getAbsolutePath());
+    }
     try {
+      if (cpuAffinity.equals("none")) {
+        cpus = CpuAllocator.allocateUnpinned();
+      } else {
+        cpus = CpuAllocator.allocate("test " + testName, cpusPerTest,
+            cpuAffinity.equals("exclusive"));
+      }
+      List<Integer> affinity = cpus.getPinned();
+      if (affinity != null) {
+        String cpuList = CpuAllocator.formatCpuList(affinity);
+        System.out.println("Running test " + testName + " on CPUs " +
+            cpuList);
+        pb.command().addAll(0, Arrays.asList("taskset", "-c", cpuList));
+      }
+      // Run the test in its own session, and so its own process group, so
+      // that we can find everything it started, even processes which have
+      // double-forked away from it.  setsid execs the test directly, so the
+      // test keeps the pid of the process we start.
+      boolean ownSession = Utils.isOnPath("setsid");
+      if (ownSession) {
+        pb.command().add(0, "setsid");
+      }
+      MemoryGovernor.awaitAdmission("test " + testName, memoryReserve,
+          memoryWaitTimeout);
       proc = pb.start();
+      startedProc = proc;
+      if (ownSession) {
+        pgid = Utils.getPid(proc);
+      }
+      MemoryGovernor.register(proc);
+      // The output threads are daemons, since we may have to give up on
+      // them if something the test started keeps its pipes open.
       errThread = new OutputToFileThread(proc.getErrorStream(),
           new File(results, testName + ".stderr"));
+      errThread.setDaemon(true);
       errThread.start();
       // Process#getInputStream gets the stdout stream of the process, which 
       // acts as an input to us.
       outThread = new OutputToFileThread(proc.getInputStream(),
           new File(results, testName + ".stdout"));
+      outThread.setDaemon(true);
       outThread.start();
       testThread = new TestThread(proc);
       testThread.start();
-      testThread.join(timeout * 1000);
+      long deadline = System.currentTimeMillis() + (timeout * 1000L);
+      while (true) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          break;
+        }
+        testThread.join(Math.min(remaining, POLL_INTERVAL_MS));
+        if (!testThread.isAlive()) {
+          break;
+        }
+        abortStatus = checkRunningTest(scratchDir, proc, outThread,
+            errThread);
+        if (abortStatus != null) {
+          break;
+        }
+      }
       if (!testThread.isAlive()) {
         retCode = testThread.retCode();
         testThread = null;
         proc = null;
       }
+      completed = true;
     } catch (IOException e) {
       throw new MojoExecutionException("IOException while executing the test " +
           testName, e);
@@ -331,7 +724,8 @@ public class TestMojo extends AbstractMojo {
           ", retCode = " + retCode + ", proc = " + proc +
           ", errThread = " + errThread + ", outThread = " + outThread);
       if (testThread != null) {
-        // If the test thread didn't exit yet, that means the timeout expired.
+        // If the test thread didn't exit yet, that means either the timeout
+        // expired, or we decided to terminate the test early.
         testThread.interrupt();
         try {
           testThread.join();
@@ -339,7 +733,7 @@ public class TestMojo extends AbstractMojo {
           System.err.println("Interrupted while waiting for testThread");
           e.printStackTrace(System.err);
         }
-        status = "TIMED_OUT";
+        status = (abortStatus != null) ? abortStatus : "TIMED_OUT";
       } else if (retCode == 0) {
         status = "SUCCESS";
       } else {
@@ -351,46 +745,60 @@ public class TestMojo extends AbstractMojo {
         System.err.println("failed to write status file!  Error " + e);
       }
       if (proc != null) {
+        // Terminate any children the test started as well, since they may
+        // be holding its pipes open.
+        Utils.killProcessTree(proc);
+        if (pgid > 0) {
+          Utils.killProcessGroup(pgid);
+        }
         proc.destroy();
       }
+      if (startedProc != null) {
+        MemoryGovernor.unregister(startedProc);
+      }
+      if (cpus != null) {
+        CpuAllocator.release(cpus);
+      }
       // Now that we've terminated the process, the threads servicing
       // its pipes should receive end-of-file and exit.
       // We don't want to terminate them manually or else we might lose
       // some output.
-      if (errThread != null) {
-        try {
-          errThread.interrupt();
-          errThread.join();
-        } catch (InterruptedException e) {
-          System.err.println("Interrupted while waiting for errThread");
-          e.printStackTrace(System.err);
-        }
-        errThread.close();
-      }
-      if (outThread != null) {
-        try {
-          outThread.interrupt();
-          outThread.join();
-        } catch (InterruptedException e) {
-          System.err.println("Interrupted while waiting for outThread");
-          e.printStackTrace(System.err);
-        }
-        outThread.close();
+      drainOutput(errThread, "stderr", pgid);
+      drainOutput(outThread, "stdout", pgid);
+      if (!completed) {
+        // We are bailing out with an error before we know how the test
+        // went, so there is nothing useful in the scratch directory.
+        deleteScratchDir(scratchDir);
       }
     }
+    String failure = null;
     if (status.equals("TIMED_OUT")) {
       if (expectedResult.equals("success")) {
-        throw new MojoExecutionException("Test " + binary +
-            " timed out after " + timeout + " seconds!");
+        failure = "Test " + binary + " timed out after " + timeout +
+            " seconds!";
+      }
+    } else if (status.equals("HUNG")) {
+      if (expectedResult.equals("success")) {
+        failure = "Test " + binary + " hung: no output or CPU use for " +
+            inactivityTimeout + " seconds!";
       }
     } else if (!status.equals("SUCCESS")) {
       if (expectedResult.equals("success")) {
-        throw new MojoExecutionException("Test " + binary +
-            " returned " + status);
+        failure = "Test " + binary + " returned " + status;
       }
     } else if (expectedResult.equals("failure")) {
-      throw new MojoExecutionException("Test " + binary +
-          " succeeded, but we expected failure!");
+      failure = "Test " + binary + " succeeded, but we expected failure!";
+    }
+    if (scratchDir != null) {
+      if ((failure != null) && keepScratchOnFailure) {
+        System.out.println("Keeping scratch directory " + scratchDir +
+            " of failed test " + testName);
+      } else {
+        deleteScratchDir(scratchDir);
+      }
+    }
+    if (failure != null) {
+      throw new MojoExecutionException(failure);
     }
   }
 }
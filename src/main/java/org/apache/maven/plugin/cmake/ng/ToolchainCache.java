@@ -0,0 +1,461 @@
+package org.apache.maven.plugin.cmake.ng;
+
+/*
+ * Copyright 2012 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A cache of CMake toolchain detection results, shared between build
+ * directories.
+ *
+ * Every fresh build directory makes CMake identify the compilers and run
+ * its try_compile checks again, which adds up when there are many native
+ * modules.  After CMake has configured a fresh build directory, we save the
+ * compiler identification files from CMakeFiles/[cmake version]/ in a cache
+ * entry, and the check results from CMakeCache.txt in a per-project initial
+ * cache file within that entry.  The next fresh build directory with the same
+ * key is seeded from the entry: the compiler files are copied in, and if
+ * this project has stored its check results, they are passed to CMake with
+ * -C.
+ *
+ * The key covers the compilers (their resolved paths, sizes, modification
+ * times and --version output), the CMake version, the host, and the CMake
+ * variables (other than compiler launchers) and environment passed to CMake.
+ * Upgrading or replacing a compiler therefore selects a new entry
+ * automatically.
+ *
+ * CMake may also have identified compilers which are not in the key, such as
+ * those for CUDA or Fortran, or compilers chosen by a toolchain file.  For
+ * each CMake[LANG]Compiler.cmake we save, we also record the path, size,
+ * modification time and --version output of the compiler it names, and we
+ * only seed the files for a language if that compiler is unchanged.  If any
+ * language is stale, we don't pass the check results either, since they were
+ * made with the old compiler, and once CMake has finished we replace the
+ * entry with the new results.
+ *
+ * Check results are scoped to the source directory, since CMake's check
+ * macros skip any variable which is already set, and two projects may use
+ * the same variable name for different checks.  They are saved again
+ * whenever a fresh build directory ends up with a different set of results,
+ * so checks added to the project are cached too.
+ *
+ * Apart from the compiler-keyed invalidation above, stored check results
+ * are never invalidated: since they are passed to CMake up front, a check
+ * whose answer has changed, such as a HAVE_* result for a library which has
+ * since been installed, or a pkg_check_modules result, keeps its old value.
+ * Delete the project's init-cache file, or the whole cache directory, after
+ * changing the system libraries or headers the project probes for.
+ */
+public class ToolchainCache {
+  private static final String INIT_CACHE_PREFIX = "init-cache-";
+  private static final String VERSION_DIR = "version-dir";
+  private static final String FINGERPRINTS = "compilers";
+  private static final Pattern COMPILER_FILE =
+      Pattern.compile("CMake(\\w+)Compiler\\.cmake");
+  private static final Pattern COMPILER_VAR =
+      Pattern.compile("set\\(CMAKE_\\w+_COMPILER \"([^\"]*)\"\\)");
+
+  private final File cacheDir;
+  private final File source;
+  private final Map<String, String> vars;
+  private final Map<String, String> env;
+  private String key;
+
+  /**
+   * True if the last seed skipped a stale compiler.
+   */
+  private boolean seededStale;
+
+  public ToolchainCache(File cacheDir, File source, Map<String, String> vars,
+      Map<String, String> env) {
+    this.cacheDir = cacheDir;
+    this.source = source;
+    this.vars = (vars == null) ? new HashMap<String, String>() : vars;
+    this.env = (env == null) ? new HashMap<String, String>() : env;
+  }
+
+  private static void addKeyPart(StringBuilder bld, String name, Object val) {
+    bld.append(name).append("=").append(val).append("\n");
+  }
+
+  private void addCompiler(StringBuilder bld, String lang)
+      throws IOException {
+    File compiler = Utils.findCompiler(lang, vars, env);
+    if (compiler == null) {
+      addKeyPart(bld, lang, "none");
+      return;
+    }
+    File canonical = compiler.getCanonicalFile();
+    addKeyPart(bld, lang + ".path", canonical);
+    addKeyPart(bld, lang + ".size", canonical.length());
+    addKeyPart(bld, lang + ".mtime", canonical.lastModified());
+    List<String> cmd = new ArrayList<String>();
+    cmd.add(compiler.getAbsolutePath());
+    cmd.add("--version");
+    addKeyPart(bld, lang + ".version", Utils.getCommandOutput(cmd, env));
+  }
+
+  /**
+   * Describe the compiler named in a CMake[LANG]Compiler.cmake file, so that
+   * we can tell whether it has changed since the file was written.
+   *
+   * @return the description, or null if the file names no compiler.
+   */
+  private String getFingerprint(File compilerFile) throws IOException {
+    Matcher m = COMPILER_VAR.matcher(Utils.readFile(compilerFile));
+    if (!m.find()) {
+      return null;
+    }
+    File canonical = new File(m.group(1)).getCanonicalFile();
+    List<String> cmd = new ArrayList<String>();
+    cmd.add(canonical.getAbsolutePath());
+    cmd.add("--version");
+    return sha1(canonical + "\n" + canonical.length() + "\n" +
+        canonical.lastModified() + "\n" + Utils.getCommandOutput(cmd, env));
+  }
+
+  /**
+   * Get the language of a CMake[LANG]Compiler.cmake or
+   * CMakeDetermineCompilerABI_[LANG].bin file, or null for other files.
+   */
+  private static String getLanguage(String name) {
+    Matcher m = COMPILER_FILE.matcher(name);
+    if (m.matches()) {
+      return m.group(1);
+    }
+    String prefix = "CMakeDetermineCompilerABI_";
+    int idx = name.lastIndexOf('.');
+    if (name.startsWith(prefix) && (idx > prefix.length())) {
+      return name.substring(prefix.length(), idx);
+    }
+    return null;
+  }
+
+  /**
+   * Compute the cache key for this toolchain.
+   */
+  String getKey() throws IOException {
+    if (key != null) {
+      return key;
+    }
+    StringBuilder bld = new StringBuilder();
+    addCompiler(bld, "C");
+    addCompiler(bld, "CXX");
+    List<String> cmd = new ArrayList<String>();
+    cmd.add("cmake");
+    cmd.add("--version");
+    addKeyPart(bld, "cmake", Utils.getCommandOutput(cmd, env));
+    addKeyPart(bld, "os", System.getProperty("os.name") + " " +
+        System.getProperty("os.arch") + " " +
+        System.getProperty("os.version"));
+    // Compiler launchers, such as ccache or the analyze mode's compile timer,
+    // wrap the compiler without changing what CMake detects about it.  The
+    // timer also lives in the build directory, so it would otherwise give
+    // every build directory its own entry.
+    Map<String, String> keyVars = new TreeMap<String, String>(vars);
+    keyVars.remove("CMAKE_C_COMPILER_LAUNCHER");
+    keyVars.remove("CMAKE_CXX_COMPILER_LAUNCHER");
+    addKeyPart(bld, "vars", keyVars);
+    addKeyPart(bld, "env", new TreeMap<String, String>(env));
+    key = sha1(bld.toString());
+    return key;
+  }
+
+  private static String sha1(String str) throws IOException {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash = digest.digest(str.getBytes("UTF-8"));
+      StringBuilder hex = new StringBuilder();
+      for (byte b : hash) {
+        hex.append(String.format("%02x", b & 0xff));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-1 is not available: " + e);
+    }
+  }
+
+  private File getEntryDir() throws IOException {
+    return new File(cacheDir, getKey());
+  }
+
+  /**
+   * Get the initial cache file holding this project's check results.
+   */
+  private File getInitCache(File entry) throws IOException {
+    return new File(entry, INIT_CACHE_PREFIX +
+        sha1(source.getCanonicalPath()) + ".cmake");
+  }
+
+  /**
+   * Find the CMakeFiles/[cmake version] directory of a build directory.
+   */
+  private static File findVersionDir(File output) {
+    File[] dirs = new File(output, "CMakeFiles").listFiles();
+    if (dirs == null) {
+      return null;
+    }
+    for (File dir : dirs) {
+      if (dir.isDirectory() && Character.isDigit(dir.getName().charAt(0)) &&
+          new File(dir, "CMakeSystem.cmake").exists()) {
+        return dir;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Seed a fresh build directory from the cache.
+   *
+   * @return the initial cache file to pass to CMake with -C, or null if
+   *         this project has not stored its check results yet.
+   */
+  public File seed(File output) throws IOException {
+    File entry = getEntryDir();
+    File versionDirFile = new File(entry, VERSION_DIR);
+    if (!versionDirFile.exists()) {
+      return null;
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(versionDirFile), "UTF-8"));
+    String versionDirName;
+    try {
+      versionDirName = reader.readLine();
+    } finally {
+      reader.close();
+    }
+    File versionDir = new File(new File(output, "CMakeFiles"),
+        versionDirName);
+    if (!versionDir.isDirectory() && !versionDir.mkdirs()) {
+      throw new IOException("Failed to create " + versionDir);
+    }
+    Map<String, String> fingerprints = readFingerprints(entry);
+    File[] files = new File(entry, versionDirName).listFiles();
+    Set<String> stale = new TreeSet<String>();
+    for (File f : files) {
+      Matcher m = COMPILER_FILE.matcher(f.getName());
+      if (m.matches()) {
+        String fingerprint = getFingerprint(f);
+        if ((fingerprint == null) ||
+            (!fingerprint.equals(fingerprints.get(f.getName())))) {
+          stale.add(m.group(1));
+        }
+      }
+    }
+    for (File f : files) {
+      String lang = getLanguage(f.getName());
+      if ((lang == null) || (!stale.contains(lang))) {
+        Utils.copyFile(f, new File(versionDir, f.getName()));
+      }
+    }
+    System.out.println("Seeded compiler identification results from " +
+        entry);
+    seededStale = !stale.isEmpty();
+    if (seededStale) {
+      System.out.println("Not seeding the results for " + stale + ", " +
+          "since the compiler has changed since they were saved.  Not " +
+          "seeding the check results either.");
+      return null;
+    }
+    File initCache = getInitCache(entry);
+    return initCache.exists() ? initCache : null;
+  }
+
+  private static Map<String, String> readFingerprints(File entry)
+      throws IOException {
+    Map<String, String> fingerprints = new HashMap<String, String>();
+    File file = new File(entry, FINGERPRINTS);
+    if (!file.exists()) {
+      return fingerprints;
+    }
+    for (String line : Utils.readFile(file).split("\n")) {
+      int idx = line.indexOf(' ');
+      if (idx > 0) {
+        fingerprints.put(line.substring(0, idx), line.substring(idx + 1));
+      }
+    }
+    return fingerprints;
+  }
+
+  /**
+   * Escape a value for use in a double-quoted CMake string.
+   */
+  private static String escape(String val) {
+    StringBuilder bld = new StringBuilder();
+    for (char c : val.toCharArray()) {
+      if ((c == '\\') || (c == '"') || (c == '$')) {
+        bld.append('\\');
+      }
+      bld.append(c);
+    }
+    return bld.toString();
+  }
+
+  /**
+   * Write the check results from CMakeCache.txt as an initial cache file.
+   *
+   * Check results are the INTERNAL entries which CMake itself doesn't
+   * manage.  We skip anything mentioning the build or source directory,
+   * since that would not be valid in another build directory.
+   */
+  private void writeInitCache(File output, File cmakeCache,
+      File initCache) throws IOException {
+    String outputPath = output.getAbsolutePath();
+    String sourcePath = source.getAbsolutePath();
+    String canonicalSourcePath = source.getCanonicalPath();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(cmakeCache), "UTF-8"));
+    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(initCache), "UTF-8"));
+    try {
+      while (true) {
+        String line = reader.readLine();
+        if (line == null) break;
+        int typeIdx = line.indexOf(":INTERNAL=");
+        if ((typeIdx <= 0) || line.startsWith("#") || line.startsWith("//")) {
+          continue;
+        }
+        String name = line.substring(0, typeIdx);
+        String val = line.substring(typeIdx + ":INTERNAL=".length());
+        if (name.startsWith("CMAKE_") || name.endsWith("-ADVANCED") ||
+            val.contains(outputPath) || val.contains(sourcePath) ||
+            val.contains(canonicalSourcePath)) {
+          continue;
+        }
+        writer.write("set(" + name + " \"" + escape(val) +
+            "\" CACHE INTERNAL \"\")\n");
+      }
+    } finally {
+      writer.close();
+      reader.close();
+    }
+  }
+
+  /**
+   * Save the detection results of a freshly configured build directory.
+   *
+   * The compiler identification files are saved if the entry doesn't exist
+   * yet, or if seed found it stale.  This project's check results are saved
+   * whenever they differ from the ones stored.  Everything is written to a
+   * temporary name and renamed into place, so that concurrent builds never
+   * see a partial entry.
+   */
+  public void store(File output) throws IOException {
+    File entry = getEntryDir();
+    File versionDir = findVersionDir(output);
+    File cmakeCache = new File(output, "CMakeCache.txt");
+    if ((versionDir == null) || (!cmakeCache.exists())) {
+      return;
+    }
+    if (seededStale && entry.exists()) {
+      // Replace the stale entry, along with the check results made with the
+      // old compilers.
+      File old = new File(cacheDir, getKey() + ".old." + System.nanoTime());
+      if (entry.renameTo(old)) {
+        Utils.recursiveDelete(old);
+      }
+    }
+    if (!entry.exists()) {
+      storeCompilerFiles(entry, versionDir);
+    }
+    File initCache = getInitCache(entry);
+    if (entry.isDirectory()) {
+      File tmp = new File(entry, initCache.getName() + ".tmp." +
+          System.nanoTime());
+      try {
+        writeInitCache(output, cmakeCache, tmp);
+        // Checks added to the project since the results were last saved
+        // show up as new entries, so save again whenever anything changed.
+        if ((!initCache.exists() ||
+            !Utils.readFile(initCache).equals(Utils.readFile(tmp))) &&
+            tmp.renameTo(initCache)) {
+          System.out.println("Saved check results to " + initCache);
+        }
+      } finally {
+        Utils.recursiveDelete(tmp);
+      }
+    }
+  }
+
+  private void storeCompilerFiles(File entry, File versionDir)
+      throws IOException {
+    if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+      throw new IOException("Failed to create " + cacheDir);
+    }
+    File tmp = new File(cacheDir, getKey() + ".tmp." +
+        System.nanoTime());
+    try {
+      File tmpVersionDir = new File(tmp, versionDir.getName());
+      if (!tmpVersionDir.mkdirs()) {
+        throw new IOException("Failed to create " + tmpVersionDir);
+      }
+      // The compiler identification results.  We skip the CompilerId
+      // subdirectories, which only hold the identification binaries.
+      StringBuilder fingerprints = new StringBuilder();
+      for (File f : versionDir.listFiles()) {
+        if (f.isFile()) {
+          Utils.copyFile(f, new File(tmpVersionDir, f.getName()));
+          if (COMPILER_FILE.matcher(f.getName()).matches()) {
+            String fingerprint = getFingerprint(f);
+            if (fingerprint != null) {
+              fingerprints.append(f.getName()).append(" ")
+                  .append(fingerprint).append("\n");
+            }
+          }
+        }
+      }
+      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+          new FileOutputStream(new File(tmp, FINGERPRINTS)), "UTF-8"));
+      try {
+        writer.write(fingerprints.toString());
+      } finally {
+        writer.close();
+      }
+      writer = new BufferedWriter(new OutputStreamWriter(
+          new FileOutputStream(new File(tmp, VERSION_DIR)), "UTF-8"));
+      try {
+        writer.write(versionDir.getName() + "\n");
+      } finally {
+        writer.close();
+      }
+      if (tmp.renameTo(entry)) {
+        System.out.println("Saved compiler identification results to " +
+            entry);
+      }
+    } finally {
+      Utils.recursiveDelete(tmp);
+    }
+  }
+}
@@ -18,14 +18,22 @@ package org.apache.maven.plugin.cmake.ng;
 
 import org.apache.maven.plugin.MojoExecutionException;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Utilities.
@@ -80,6 +88,365 @@ public class Utils {
     }
   }
 
+  private static String getEnv(Map<String, String> env, String name) {
+    String val = (env == null) ? null : env.get(name);
+    if (val == null) {
+      val = System.getenv(name);
+    }
+    return val;
+  }
+
+  /**
+   * Find the compiler that CMake will use for a language, the same way that
+   * CMake does: an explicit CMake variable, then the environment, then the
+   * default name on the PATH.
+   *
+   * @param lang         Either "C" or "CXX".
+   * @param vars         The CMake variables we will pass, or null.
+   * @param env          The environment we will pass to CMake, or null.
+   *
+   * @return the compiler, or null if it could not be found.
+   */
+  static File findCompiler(String lang, Map<String, String> vars,
+      Map<String, String> env) {
+    String compiler = (vars == null) ? null :
+        vars.get("CMAKE_" + lang + "_COMPILER");
+    if ((compiler == null) || compiler.equals("")) {
+      compiler = getEnv(env, lang.equals("C") ? "CC" : "CXX");
+    }
+    if ((compiler == null) || compiler.equals("")) {
+      compiler = lang.equals("C") ? "cc" : "c++";
+    }
+    // The environment variable may include flags after the compiler name.
+    compiler = compiler.trim().split("\\s+")[0];
+    if (compiler.contains(File.separator)) {
+      return new File(compiler);
+    }
+    String path = getEnv(env, "PATH");
+    if (path == null) {
+      return null;
+    }
+    for (String dir : path.split(File.pathSeparator)) {
+      File f = new File(dir, compiler);
+      if (f.isFile()) {
+        return f;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get the operating system process ID of a Process.
+   *
+   * Process#pid only exists in Java 9 and later, so we look it up
+   * reflectively, falling back on the private field used by the older UNIX
+   * process implementation.
+   *
+   * @return the process ID, or -1 if it could not be determined.
+   */
+  static int getPid(Process proc) {
+    try {
+      Method method = Process.class.getMethod("pid");
+      return ((Number)method.invoke(proc)).intValue();
+    } catch (Exception e) {
+      // Fall through to the pre-Java 9 approach.
+    }
+    try {
+      Field field = proc.getClass().getDeclaredField("pid");
+      field.setAccessible(true);
+      return field.getInt(proc);
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Read a file into a String.
+   */
+  static String readFile(File file) throws IOException {
+    StringBuilder bld = new StringBuilder();
+    InputStreamReader reader =
+        new InputStreamReader(new FileInputStream(file), "UTF-8");
+    try {
+      char[] arr = new char[8192];
+      while (true) {
+        int amt = reader.read(arr);
+        if (amt < 0) break;
+        bld.append(arr, 0, amt);
+      }
+    } finally {
+      reader.close();
+    }
+    return bld.toString();
+  }
+
+  /**
+   * Read a file from /proc into a String.
+   *
+   * @return the file contents, or null if the file could not be read.  This
+   *         is common, since processes can exit at any time.
+   */
+  static String readProcFile(File file) {
+    try {
+      return readFile(file);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Get the fields of /proc/[pid]/stat which follow the command name.
+   *
+   * The command name is in parentheses and may itself contain spaces or
+   * parentheses, so we split after the last closing parenthesis.  Element 0
+   * of the result is the process state, element 1 is the parent pid, and so
+   * on, following the numbering in proc(5) minus three.
+   *
+   * @return the fields, or null if the process no longer exists.
+   */
+  static String[] readProcStat(int pid) {
+    String stat = readProcFile(new File("/proc/" + pid + "/stat"));
+    if (stat == null) {
+      return null;
+    }
+    int idx = stat.lastIndexOf(')');
+    if (idx < 0) {
+      return null;
+    }
+    return stat.substring(idx + 1).trim().split(" ");
+  }
+
+  /**
+   * Get the CPU time used so far by a process and all of its descendants.
+   *
+   * @return the CPU time in clock ticks, or -1 if the process no longer
+   *         exists.
+   */
+  static long getCpuTicks(int pid) {
+    List<Integer> pids = new ArrayList<Integer>();
+    pids.add(pid);
+    pids.addAll(getDescendantPids(pid));
+    long total = -1;
+    for (int p : pids) {
+      String[] stat = readProcStat(p);
+      // utime and stime are fields 14 and 15 in proc(5).
+      if ((stat == null) || (stat.length < 13)) {
+        continue;
+      }
+      try {
+        long ticks = Long.parseLong(stat[11]) + Long.parseLong(stat[12]);
+        total = (total < 0) ? ticks : (total + ticks);
+      } catch (NumberFormatException e) {
+        continue;
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Get the pids of all descendants of a process, by walking /proc.
+   *
+   * @return the descendant pids, children before grandchildren.  This list
+   *         will be empty if /proc is not available.
+   */
+  static List<Integer> getDescendantPids(int pid) {
+    List<Integer> descendants = new ArrayList<Integer>();
+    File[] procs = new File("/proc").listFiles();
+    if (procs == null) {
+      return descendants;
+    }
+    Map<Integer, List<Integer>> children =
+        new HashMap<Integer, List<Integer>>();
+    for (File f : procs) {
+      int child;
+      try {
+        child = Integer.parseInt(f.getName());
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      String[] stat = readProcStat(child);
+      if ((stat == null) || (stat.length < 2)) {
+        continue;
+      }
+      Integer parent = Integer.valueOf(stat[1]);
+      List<Integer> siblings = children.get(parent);
+      if (siblings == null) {
+        siblings = new ArrayList<Integer>();
+        children.put(parent, siblings);
+      }
+      siblings.add(child);
+    }
+    LinkedList<Integer> queue = new LinkedList<Integer>();
+    queue.add(pid);
+    while (!queue.isEmpty()) {
+      List<Integer> cur = children.get(queue.removeFirst());
+      if (cur != null) {
+        descendants.addAll(cur);
+        queue.addAll(cur);
+      }
+    }
+    return descendants;
+  }
+
+  /**
+   * Run a short-lived command and capture its output.
+   *
+   * @return the combined stdout and stderr of the command, or null if it
+   *         could not be run or returned a non-zero exit code.
+   */
+  static String getCommandOutput(List<String> cmd, Map<String, String> env) {
+    ProcessBuilder pb = new ProcessBuilder(cmd);
+    pb.redirectErrorStream(true);
+    if (env != null) {
+      addEnvironment(pb, env);
+    }
+    Process proc = null;
+    OutputBufferThread outThread = null;
+    try {
+      proc = pb.start();
+      outThread = new OutputBufferThread(proc.getInputStream());
+      outThread.start();
+      int retCode = proc.waitFor();
+      outThread.join();
+      if (retCode != 0) {
+        return null;
+      }
+      return outThread.getOutput();
+    } catch (IOException e) {
+      return null;
+    } catch (InterruptedException e) {
+      return null;
+    } finally {
+      if (proc != null) {
+        proc.destroy();
+      }
+    }
+  }
+
+  /**
+   * Copy a file.
+   */
+  static void copyFile(File src, File dst) throws IOException {
+    FileInputStream in = new FileInputStream(src);
+    try {
+      FileOutputStream out = new FileOutputStream(dst);
+      try {
+        byte[] arr = new byte[8192];
+        while (true) {
+          int amt = in.read(arr);
+          if (amt < 0) break;
+          out.write(arr, 0, amt);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+    dst.setLastModified(src.lastModified());
+  }
+
+  /**
+   * Recursively delete a file or directory.
+   */
+  static void recursiveDelete(File f) throws IOException {
+    if (!f.exists())
+      return;
+    if (f.isDirectory()) {
+      for (File c : f.listFiles()) {
+        recursiveDelete(c);
+      }
+    }
+    if (!f.delete()) {
+      throw new IOException("Failed to delete file: " + f);
+    }
+  }
+
+  /**
+   * Terminate a process and all of its descendants.
+   *
+   * Process#destroy only signals the direct child.  When that child is make,
+   * the compiler processes it started would keep running, so we signal the
+   * whole tree.  The descendants are found before any signal is sent, so
+   * that they can't escape by being reparented.
+   *
+   * We avoid Process#destroy when we can, since it also closes our ends of
+   * the process's pipes, and we may still want to drain them.
+   */
+  static void killProcessTree(Process proc) {
+    int pid = getPid(proc);
+    if (pid < 0) {
+      proc.destroy();
+    } else {
+      List<String> pids = new LinkedList<String>();
+      pids.add(String.valueOf(pid));
+      for (int desc : getDescendantPids(pid)) {
+        pids.add(String.valueOf(desc));
+      }
+      sendSignal("-TERM", pids);
+    }
+  }
+
+  /**
+   * Terminate every process in a process group.
+   *
+   * This also reaches processes which have double-forked away from the
+   * process which started the group, and so are not found by
+   * killProcessTree.
+   */
+  static void killProcessGroup(int pgid) {
+    List<String> targets = new LinkedList<String>();
+    targets.add("--");
+    targets.add("-" + pgid);
+    sendSignal("-TERM", targets);
+  }
+
+  /**
+   * Send a signal, such as "-STOP", to the given pids or process groups.
+   */
+  static void sendSignal(String signal, List<String> targets) {
+    List<String> cmd = new LinkedList<String>();
+    cmd.add("kill");
+    cmd.add(signal);
+    cmd.addAll(targets);
+    ProcessBuilder pb = new ProcessBuilder(cmd);
+    pb.redirectErrorStream(true);
+    Process kill = null;
+    try {
+      kill = pb.start();
+      // Processes may exit before we get to them, so ignore the exit code.
+      OutputBufferThread outThread =
+          new OutputBufferThread(kill.getInputStream());
+      outThread.start();
+      kill.waitFor();
+      outThread.join();
+    } catch (IOException e) {
+      e.printStackTrace();
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    } finally {
+      if (kill != null) {
+        kill.destroy();
+      }
+    }
+  }
+
+  /**
+   * Returns true if an executable with the given name is on the PATH.
+   */
+  static boolean isOnPath(String name) {
+    String path = System.getenv("PATH");
+    if (path == null) {
+      return false;
+    }
+    for (String dir : path.split(File.pathSeparator)) {
+      if (new File(dir, name).isFile()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * This thread reads the output of the a subprocess and buffers it.
    *
@@ -126,6 +493,131 @@ public class Utils {
         System.out.print(b);
       }
     }
+
+    public String getOutput() {
+      StringBuilder bld = new StringBuilder();
+      for (char[] b : bufs) {
+        bld.append(b);
+      }
+      return bld.toString();
+    }
+  }
+
+  /**
+   * This thread reads the output of a build process line by line, and prints
+   * each line as soon as it arrives.
+   *
+   * If echo is false, lines are buffered instead, as in OutputBufferThread,
+   * but we still print progress reports based on the percentage lines printed
+   * by make ("[ 42%] Building ...") and ninja ("[12/345] Building ...").
+   * Progress reports are printed at most once every progressIntervalMs
+   * milliseconds.
+   *
+   * If an error callback is set, it is run once, from this thread, as soon
+   * as we see the first line that looks like a compiler or linker error.
+   */
+  public static class OutputStreamThread extends Thread {
+    private static final Pattern MAKE_PROGRESS =
+        Pattern.compile("^\\[\\s*(\\d+)%\\]");
+    private static final Pattern NINJA_PROGRESS =
+        Pattern.compile("^\\[(\\d+)/(\\d+)\\]");
+    private static final Pattern ERROR =
+        Pattern.compile("(^|: )(fatal )?error:|undefined reference to ");
+
+    private BufferedReader reader;
+    private final String prefix;
+    private final boolean echo;
+    private final long progressIntervalMs;
+    private final ArrayList<String> lines;
+    private Runnable errorCallback;
+    private volatile String firstError;
+    private int lastProgress = -1;
+    private long lastProgressTime = 0;
+
+    public OutputStreamThread(InputStream is, String prefix, boolean echo,
+        long progressIntervalMs) {
+      this.reader = new BufferedReader(new InputStreamReader(is));
+      this.prefix = (prefix == null) ? "" : ("[" + prefix + "] ");
+      this.echo = echo;
+      this.progressIntervalMs = progressIntervalMs;
+      this.lines = new ArrayList<String>();
+    }
+
+    public void setErrorCallback(Runnable errorCallback) {
+      this.errorCallback = errorCallback;
+    }
+
+    /**
+     * Get the first line that looked like an error, or null if there was
+     * none.
+     */
+    public String getFirstError() {
+      return firstError;
+    }
+
+    private int parseProgress(String line) {
+      Matcher m = MAKE_PROGRESS.matcher(line);
+      if (m.find()) {
+        return Integer.parseInt(m.group(1));
+      }
+      m = NINJA_PROGRESS.matcher(line);
+      if (m.find()) {
+        int total = Integer.parseInt(m.group(2));
+        if (total > 0) {
+          return (int)((Integer.parseInt(m.group(1)) * 100L) / total);
+        }
+      }
+      return -1;
+    }
+
+    private void handleLine(String line) {
+      if (echo) {
+        System.out.println(prefix + line);
+      } else {
+        lines.add(line);
+        int progress = parseProgress(line);
+        long now = System.currentTimeMillis();
+        if ((progress > lastProgress) &&
+            (now - lastProgressTime >= progressIntervalMs)) {
+          System.out.println(prefix + "Build progress: " + progress + "%");
+          lastProgress = progress;
+          lastProgressTime = now;
+        }
+      }
+      if ((firstError == null) && ERROR.matcher(line).find()) {
+        firstError = line;
+        if (errorCallback != null) {
+          errorCallback.run();
+        }
+      }
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          String line = reader.readLine();
+          if (line == null) return;
+          handleLine(line);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      } finally {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+
+    /**
+     * Print the lines we buffered because echo was off.
+     */
+    public void printBufs() {
+      for (String line : lines) {
+        System.out.println(prefix + line);
+      }
+    }
   }
 
   /**
@@ -136,11 +628,21 @@ public class Utils {
   public static class OutputToFileThread extends Thread {
     private InputStream is;
     private FileOutputStream out;
+    private volatile long lastActivity;
 
     public OutputToFileThread(InputStream is, File outFile) 
         throws IOException {
       this.is = is;
       this.out = new FileOutputStream(outFile);
+      this.lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Get the time at which we last received output, or at which this
+     * thread was created if there has been no output yet.
+     */
+    public long getLastActivity() {
+      return lastActivity;
     }
 
     public void run() {
@@ -149,6 +651,7 @@ public class Utils {
         while (true) {
           int amt = is.read(arr);
           if (amt < 0) return;
+          lastActivity = System.currentTimeMillis();
           out.write(arr, 0, amt);
         }
       } catch (IOException e) {
@@ -0,0 +1,503 @@
+package org.apache.maven.plugin.cmake.ng;
+
+/*
+ * Copyright 2012 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.cmake.ng.Utils.OutputBufferThread;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Measures how much wall time, heap and threads the plugin adds compared with
+ * running cmake, make, the test binaries and rm directly.
+ *
+ * We generate synthetic CMake projects with a configurable number of library
+ * targets, sources per target and test binaries.  For each project, every
+ * iteration runs the raw tools and the generate, compile, test and clean
+ * goals, each from an empty build directory.  Iterations alternate which of
+ * the two goes first, so that neither always gets the warmer page cache.  We
+ * report the median wall time of each, and how much more peak heap and how
+ * many more threads the plugin used than the raw tools.
+ *
+ * This is not a unit test, and is not run by 'mvn test'.  Run it by hand,
+ * with the plugin, its test classes and the Maven jars on the classpath:
+ *
+ *   java -cp target/classes:target/test-classes:[maven jars] \
+ *       -Dbench.targets=1,10,40 -Dbench.tests=1,20 \
+ *       org.apache.maven.plugin.cmake.ng.PluginOverheadBenchmark
+ *
+ * The settings are:
+ *   bench.targets      Comma-separated numbers of library targets. (4)
+ *   bench.sources      Comma-separated numbers of sources per target. (8)
+ *   bench.tests        Comma-separated numbers of test binaries. (4)
+ *   bench.iterations   Number of measured iterations per project. (5)
+ *   bench.dir          Scratch directory for the projects.
+ *                      (java.io.tmpdir/cmake-ng-bench)
+ */
+public class PluginOverheadBenchmark {
+  private static final String[] GOALS =
+      { "generate", "compile", "test", "clean" };
+
+  /**
+   * The cost of one run of one goal.
+   */
+  private static class Sample {
+    private long wallMs;
+    private long peakHeapBytes;
+    private int extraThreads;
+  }
+
+  /**
+   * Something we can measure: either a goal or its raw-tool equivalent.
+   */
+  private interface Step {
+    void run() throws Exception;
+  }
+
+  private final File sourceDir;
+  private final File buildDir;
+  private final File resultsDir;
+  private final int numTests;
+
+  private PluginOverheadBenchmark(File projectDir, int numTests) {
+    this.sourceDir = new File(projectDir, "src");
+    this.buildDir = new File(projectDir, "build");
+    this.resultsDir = new File(projectDir, "results");
+    this.numTests = numTests;
+  }
+
+  private static List<Integer> getIntList(String name, String def) {
+    List<Integer> vals = new ArrayList<Integer>();
+    for (String val : System.getProperty(name, def).split(",")) {
+      vals.add(Integer.parseInt(val.trim()));
+    }
+    return vals;
+  }
+
+  private static void writeFile(File file, String contents)
+      throws IOException {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+        "UTF-8");
+    try {
+      writer.write(contents);
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Generate a synthetic CMake project.
+   */
+  private void generateProject(int numTargets, int numSources)
+      throws IOException {
+    Utils.recursiveDelete(sourceDir);
+    if (!sourceDir.mkdirs()) {
+      throw new IOException("Failed to create " + sourceDir);
+    }
+    StringBuilder cmake = new StringBuilder();
+    cmake.append("cmake_minimum_required(VERSION 3.5...3.28)\n");
+    cmake.append("project(cmake_ng_bench C)\n");
+    for (int t = 0; t < numTargets; t++) {
+      StringBuilder srcs = new StringBuilder();
+      for (int s = 0; s < numSources; s++) {
+        String name = "lib" + t + "_" + s + ".c";
+        writeFile(new File(sourceDir, name),
+            "#include <stdio.h>\n#include <string.h>\n" +
+            "int lib" + t + "_" + s + "(const char *str) {\n" +
+            "  return (int)strlen(str) + " + s + ";\n}\n");
+        srcs.append(" ").append(name);
+      }
+      cmake.append("add_library(lib" + t + " STATIC" + srcs + ")\n");
+    }
+    for (int t = 0; t < numTests; t++) {
+      writeFile(new File(sourceDir, "test" + t + ".c"),
+          "#include <stdio.h>\n" +
+          "int main(void) {\n" +
+          "  printf(\"test " + t + " passed\\n\");\n" +
+          "  return 0;\n}\n");
+      cmake.append("add_executable(test" + t + " test" + t + ".c)\n");
+      if (numTargets > 0) {
+        cmake.append("target_link_libraries(test" + t + " lib" +
+            (t % numTargets) + ")\n");
+      }
+    }
+    writeFile(new File(sourceDir, "CMakeLists.txt"), cmake.toString());
+  }
+
+  /**
+   * Run a raw tool, failing if it fails.
+   */
+  private static void runRaw(File dir, String... args) throws Exception {
+    ProcessBuilder pb = new ProcessBuilder(args);
+    pb.directory(dir);
+    pb.redirectErrorStream(true);
+    Process proc = pb.start();
+    OutputBufferThread outThread =
+        new OutputBufferThread(proc.getInputStream());
+    outThread.start();
+    int retCode = proc.waitFor();
+    outThread.join();
+    proc.destroy();
+    if (retCode != 0) {
+      outThread.printBufs();
+      throw new IOException(args[0] + " failed with error code " + retCode);
+    }
+  }
+
+  private static void set(Object obj, String name, Object val)
+      throws Exception {
+    Field field = obj.getClass().getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(obj, val);
+  }
+
+  /**
+   * Create a MavenSession with empty execution properties.
+   *
+   * Its constructor differs between Maven versions, so we try each one,
+   * passing empty objects where we can and null elsewhere.
+   */
+  private static MavenSession createSession() throws Exception {
+    for (Constructor<?> ctor : MavenSession.class.getConstructors()) {
+      Class<?>[] types = ctor.getParameterTypes();
+      Object[] args = new Object[types.length];
+      for (int i = 0; i < types.length; i++) {
+        args[i] = createEmpty(types[i]);
+      }
+      try {
+        MavenSession session = (MavenSession)ctor.newInstance(args);
+        if (session.getExecutionProperties() != null) {
+          return session;
+        }
+      } catch (Exception e) {
+        continue;
+      }
+    }
+    throw new IOException("Unable to create a MavenSession");
+  }
+
+  private static Object createEmpty(Class<?> type) {
+    if (type.equals(Properties.class)) {
+      return new Properties();
+    } else if (type.equals(Date.class)) {
+      return new Date();
+    } else if (type.equals(List.class)) {
+      return new ArrayList<Object>();
+    } else if (type.getName().startsWith("org.codehaus.plexus")) {
+      // Creating a real container would dwarf what we are measuring.
+      return null;
+    }
+    try {
+      if (type.isInterface()) {
+        type = Class.forName(type.getPackage().getName() + ".Default" +
+            type.getSimpleName());
+      }
+      return type.getConstructor().newInstance();
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private GenerateMojo createGenerateMojo() throws Exception {
+    GenerateMojo mojo = new GenerateMojo();
+    set(mojo, "output", buildDir);
+    set(mojo, "source", sourceDir);
+    set(mojo, "env", new HashMap<String, String>());
+    set(mojo, "vars", new HashMap<String, String>());
+    return mojo;
+  }
+
+  private CompileMojo createCompileMojo() throws Exception {
+    CompileMojo mojo = new CompileMojo();
+    set(mojo, "output", buildDir);
+    set(mojo, "memoryPerJob", 1024L);
+    set(mojo, "progressInterval", 10);
+    return mojo;
+  }
+
+  private TestMojo createTestMojo(int idx, MavenSession session)
+      throws Exception {
+    TestMojo mojo = new TestMojo();
+    set(mojo, "binary", new File(buildDir, "test" + idx));
+    set(mojo, "args", new ArrayList<String>());
+    set(mojo, "timeout", 600);
+    set(mojo, "results", resultsDir);
+    set(mojo, "expectedResult", "success");
+    set(mojo, "memoryWaitTimeout", 600);
+    set(mojo, "keepScratchOnFailure", true);
+    set(mojo, "cpuAffinity", "none");
+    set(mojo, "cpusPerTest", 1);
+    set(mojo, "session", session);
+    return mojo;
+  }
+
+  private CleanMojo createCleanMojo() throws Exception {
+    CleanMojo mojo = new CleanMojo();
+    set(mojo, "output", buildDir);
+    set(mojo, "cleanMode", "all");
+    return mojo;
+  }
+
+  private static List<MemoryPoolMXBean> getHeapPools() {
+    List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pools.add(pool);
+      }
+    }
+    return pools;
+  }
+
+  /**
+   * Run a step, measuring its wall time, peak heap and peak thread count.
+   */
+  private static Sample measure(Step step) throws Exception {
+    List<MemoryPoolMXBean> pools = getHeapPools();
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    System.gc();
+    for (MemoryPoolMXBean pool : pools) {
+      pool.resetPeakUsage();
+    }
+    threads.resetPeakThreadCount();
+    int baseThreads = threads.getThreadCount();
+    long start = System.nanoTime();
+    step.run();
+    Sample sample = new Sample();
+    sample.wallMs = (System.nanoTime() - start) / 1000000;
+    for (MemoryPoolMXBean pool : pools) {
+      sample.peakHeapBytes += pool.getPeakUsage().getUsed();
+    }
+    sample.extraThreads = threads.getPeakThreadCount() - baseThreads;
+    return sample;
+  }
+
+  private static long median(List<Long> vals) {
+    List<Long> sorted = new ArrayList<Long>(vals);
+    Collections.sort(sorted);
+    return sorted.get(sorted.size() / 2);
+  }
+
+  /**
+   * Start over with an empty build directory and no test results.
+   */
+  private void resetBuildDir() throws IOException {
+    Utils.recursiveDelete(buildDir);
+    Utils.recursiveDelete(resultsDir);
+    if (!buildDir.mkdirs()) {
+      throw new IOException("Failed to create " + buildDir);
+    }
+  }
+
+  /**
+   * Run cmake, make, the test binaries and rm directly.
+   */
+  private void runRawSteps(Map<String, List<Sample>> raw) throws Exception {
+    resetBuildDir();
+    raw.get("generate").add(measure(new Step() {
+      public void run() throws Exception {
+        runRaw(buildDir, "cmake", sourceDir.getAbsolutePath(),
+            "-G", "Unix Makefiles");
+      }
+    }));
+    raw.get("compile").add(measure(new Step() {
+      public void run() throws Exception {
+        runRaw(buildDir, "make", "VERBOSE=1");
+      }
+    }));
+    raw.get("test").add(measure(new Step() {
+      public void run() throws Exception {
+        for (int t = 0; t < numTests; t++) {
+          runRaw(buildDir, new File(buildDir, "test" + t).getAbsolutePath());
+        }
+      }
+    }));
+    raw.get("clean").add(measure(new Step() {
+      public void run() throws Exception {
+        runRaw(buildDir.getParentFile(), "rm", "-rf",
+            buildDir.getAbsolutePath());
+      }
+    }));
+  }
+
+  /**
+   * Run the generate, compile, test and clean goals.
+   */
+  private void runPluginSteps(Map<String, List<Sample>> plugin,
+      MavenSession session) throws Exception {
+    resetBuildDir();
+    final List<AbstractMojo> testMojos = new LinkedList<AbstractMojo>();
+    for (int t = 0; t < numTests; t++) {
+      testMojos.add(createTestMojo(t, session));
+    }
+    final GenerateMojo generate = createGenerateMojo();
+    final CompileMojo compile = createCompileMojo();
+    final CleanMojo clean = createCleanMojo();
+    plugin.get("generate").add(measure(new Step() {
+      public void run() throws Exception {
+        generate.execute();
+      }
+    }));
+    plugin.get("compile").add(measure(new Step() {
+      public void run() throws Exception {
+        compile.execute();
+      }
+    }));
+    plugin.get("test").add(measure(new Step() {
+      public void run() throws Exception {
+        for (AbstractMojo mojo : testMojos) {
+          mojo.execute();
+        }
+      }
+    }));
+    plugin.get("clean").add(measure(new Step() {
+      public void run() throws Exception {
+        clean.execute();
+      }
+    }));
+  }
+
+  /**
+   * Run one iteration of the raw tools and of the plugin goals.
+   *
+   * @param rawFirst     If true, run the raw tools first; otherwise run the
+   *                     plugin goals first.
+   */
+  private void runIteration(Map<String, List<Sample>> raw,
+      Map<String, List<Sample>> plugin, MavenSession session,
+      boolean rawFirst) throws Exception {
+    if (rawFirst) {
+      runRawSteps(raw);
+      runPluginSteps(plugin, session);
+    } else {
+      runPluginSteps(plugin, session);
+      runRawSteps(raw);
+    }
+  }
+
+  private static Map<String, List<Sample>> newSampleMap() {
+    Map<String, List<Sample>> samples = new HashMap<String, List<Sample>>();
+    for (String goal : GOALS) {
+      samples.put(goal, new ArrayList<Sample>());
+    }
+    return samples;
+  }
+
+  private static List<Long> getWallMs(List<Sample> samples) {
+    List<Long> vals = new ArrayList<Long>();
+    for (Sample s : samples) {
+      vals.add(s.wallMs);
+    }
+    return vals;
+  }
+
+  private static List<Long> getPeakHeapBytes(List<Sample> samples) {
+    List<Long> vals = new ArrayList<Long>();
+    for (Sample s : samples) {
+      vals.add(s.peakHeapBytes);
+    }
+    return vals;
+  }
+
+  private static int getMaxExtraThreads(List<Sample> samples) {
+    int max = 0;
+    for (Sample s : samples) {
+      max = Math.max(max, s.extraThreads);
+    }
+    return max;
+  }
+
+  private static String report(String project,
+      Map<String, List<Sample>> raw, Map<String, List<Sample>> plugin) {
+    StringBuilder bld = new StringBuilder();
+    bld.append(project).append("\n");
+    bld.append(String.format("  %-10s %10s %10s %10s %9s %12s %8s%n",
+        "goal", "raw ms", "plugin ms", "overhead", "overhead%",
+        "+heap MB", "+threads"));
+    for (String goal : GOALS) {
+      long rawMedian = median(getWallMs(raw.get(goal)));
+      long pluginMedian = median(getWallMs(plugin.get(goal)));
+      long overhead = pluginMedian - rawMedian;
+      long extraHeap = median(getPeakHeapBytes(plugin.get(goal))) -
+          median(getPeakHeapBytes(raw.get(goal)));
+      int extraThreads = getMaxExtraThreads(plugin.get(goal)) -
+          getMaxExtraThreads(raw.get(goal));
+      bld.append(String.format("  %-10s %10d %10d %10d %8.1f%% %12.1f %8d%n",
+          goal, rawMedian, pluginMedian, overhead,
+          (rawMedian > 0) ? (100.0 * overhead / rawMedian) : 0.0,
+          extraHeap / (1024.0 * 1024.0), extraThreads));
+    }
+    return bld.toString();
+  }
+
+  public static void main(String[] args) throws Exception {
+    Utils.validatePlatform();
+    List<Integer> targetCounts = getIntList("bench.targets", "4");
+    List<Integer> sourceCounts = getIntList("bench.sources", "8");
+    List<Integer> testCounts = getIntList("bench.tests", "4");
+    int iterations = Integer.parseInt(
+        System.getProperty("bench.iterations", "5"));
+    File baseDir = new File(System.getProperty("bench.dir",
+        new File(System.getProperty("java.io.tmpdir"),
+            "cmake-ng-bench").getAbsolutePath()));
+    MavenSession session = createSession();
+
+    StringBuilder results = new StringBuilder();
+    for (int targets : targetCounts) {
+      for (int sources : sourceCounts) {
+        for (int tests : testCounts) {
+          String project = targets + " targets x " + sources +
+              " sources, " + tests + " tests";
+          System.out.println("Benchmarking " + project);
+          PluginOverheadBenchmark bench = new PluginOverheadBenchmark(
+              new File(baseDir, "p" + targets + "_" + sources + "_" + tests),
+              tests);
+          bench.generateProject(targets, sources);
+          // The first iteration warms up the JIT and the page cache, and is
+          // not counted.
+          bench.runIteration(newSampleMap(), newSampleMap(), session, true);
+          Map<String, List<Sample>> raw = newSampleMap();
+          Map<String, List<Sample>> plugin = newSampleMap();
+          for (int i = 0; i < iterations; i++) {
+            bench.runIteration(raw, plugin, session, (i % 2) == 0);
+          }
+          results.append(report(project, raw, plugin));
+        }
+      }
+    }
+    System.out.println();
+    System.out.print(results);
+  }
+}
@@ -0,0 +1,120 @@
+package org.apache.maven.plugin.cmake.ng;
+
+/*
+ * Copyright 2012 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+public class TestCompileReport extends TestCase {
+  private File dir;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = File.createTempFile("cmake-ng-report", "");
+    assertTrue(dir.delete());
+    // Put the build directory under a *.dir directory, so that files
+    // directly in it would look like per-object files if we looked further
+    // up than the build directory.
+    dir = new File(dir, "project.dir");
+    assertTrue(dir.mkdirs());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Utils.recursiveDelete(dir.getParentFile());
+  }
+
+  private void write(String name, String contents) throws IOException {
+    File f = new File(dir, name);
+    f.getParentFile().mkdirs();
+    Writer writer = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+    try {
+      writer.write(contents);
+    } finally {
+      writer.close();
+    }
+  }
+
+  private String generate() throws IOException {
+    CompileReport.generate(dir);
+    return Utils.readFile(new File(dir, CompileReport.REPORT_NAME));
+  }
+
+  private static String trace(String header, long dur) {
+    return "{\"traceEvents\": [" +
+        "{\"name\": \"Source\", \"dur\": " + dur + ", " +
+        "\"args\": {\"detail\": \"" + header + "\"}}, " +
+        "{\"name\": \"ExecuteCompiler\", \"dur\": 5000000}]}";
+  }
+
+  public void testUnitKey() {
+    assertEquals("a.dir/src/a.c.o",
+        CompileReport.getUnitKey("CMakeFiles/a.dir/src/a.c.o"));
+    assertEquals("b.dir/b.c.o",
+        CompileReport.getUnitKey("/build/sub/CMakeFiles/b.dir/b.c.o"));
+    assertEquals("b.dir/b.c.o",
+        CompileReport.getUnitKey("outer.dir/CMakeFiles/b.dir/b.c.o"));
+    assertEquals("a.c.o", CompileReport.getUnitKey("a.c.o"));
+  }
+
+  public void testTimingsMatchedWithDepFiles() throws Exception {
+    // The timer names objects from the top of the build directory, but
+    // the dependency files name them from their subdirectory.
+    write("sub/CMakeFiles/b.dir/b.c.o.time", "2000000\n");
+    write("sub/CMakeFiles/b.dir/compiler_depend.make",
+        "# comment\n" +
+        "CMakeFiles/b.dir/b.c.o: ../b.c \\\n" +
+        "  /usr/include/stdio.h\n" +
+        "CMakeFiles/c.dir/c.c.o: /usr/include/untimed.h\n");
+    String report = generate();
+    assertTrue(report, report.contains("from 1 compile timings"));
+    assertTrue(report, report.contains(
+        "     2.000s      1 TUs  /usr/include/stdio.h"));
+    assertTrue(report, report.contains(
+        "     2.000s      1 headers  sub/CMakeFiles/b.dir/b.c.o"));
+    assertFalse(report, report.contains("untimed.h"));
+    assertFalse(report, report.contains("b.c\n"));
+  }
+
+  public void testDepFilesWithoutTimings() throws Exception {
+    write("CMakeFiles/a.dir/depend.make",
+        "CMakeFiles/a.dir/a.c.o: ../a.c /usr/include/stdio.h\n" +
+        "CMakeFiles/a.dir/b.c.o: ../b.c /usr/include/stdio.h\n");
+    String report = generate();
+    assertTrue(report, report.contains("from 1 dependency files"));
+    assertTrue(report, report.contains("     2 TUs  /usr/include/stdio.h"));
+  }
+
+  public void testMalformedTracesSkipped() throws Exception {
+    write("CMakeFiles/a.dir/a.c.json", trace("/usr/include/stdio.h", 1500));
+    write("CMakeFiles/a.dir/b.c.json", "{\"traceEvents\": [{\"name\": ");
+    write("compile_commands.json", "[{");
+    // Not in a target directory, so not a trace at all.
+    write("other.json", trace("/usr/include/other.h", 1500));
+    String report = generate();
+    assertTrue(report, report.contains("from 1 -ftime-trace files"));
+    assertTrue(report, report.contains("/usr/include/stdio.h"));
+    assertTrue(report, report.contains("CMakeFiles/a.dir/a.c\n"));
+    assertFalse(report, report.contains("other.h"));
+    assertFalse(report, report.contains("b.c"));
+  }
+}
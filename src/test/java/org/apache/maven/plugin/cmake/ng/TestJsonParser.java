@@ -0,0 +1,70 @@
+package org.apache.maven.plugin.cmake.ng;
+
+/*
+ * Copyright 2012 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+public class TestJsonParser extends TestCase {
+  public void testValues() throws Exception {
+    Map<?, ?> obj = (Map<?, ?>)JsonParser.parse(
+        " { \"a\" : [1, true, false, null, \"x\"], \"b\": {} } ");
+    List<?> arr = (List<?>)obj.get("a");
+    assertEquals(5, arr.size());
+    assertEquals(Double.valueOf(1), arr.get(0));
+    assertEquals(Boolean.TRUE, arr.get(1));
+    assertEquals(Boolean.FALSE, arr.get(2));
+    assertNull(arr.get(3));
+    assertEquals("x", arr.get(4));
+    assertTrue(((Map<?, ?>)obj.get("b")).isEmpty());
+  }
+
+  public void testEscapes() throws Exception {
+    assertEquals("a\"b\\c/d\b\f\n\r\te",
+        JsonParser.parse("\"a\\\"b\\\\c\\/d\\b\\f\\n\\r\\te\""));
+    assertEquals("\u00e9", JsonParser.parse("\"\\u00E9\""));
+    // Characters outside the BMP are escaped as a surrogate pair, which
+    // is also how Java strings hold them.
+    String smiley = (String)JsonParser.parse("\"\\uD83D\\uDE00\"");
+    assertEquals(2, smiley.length());
+    assertEquals(0x1F600, smiley.codePointAt(0));
+  }
+
+  public void testNumbers() throws Exception {
+    assertEquals(Double.valueOf(0), JsonParser.parse("0"));
+    assertEquals(Double.valueOf(-12.5), JsonParser.parse("-12.5"));
+    assertEquals(Double.valueOf(1000), JsonParser.parse("1e3"));
+    assertEquals(Double.valueOf(150), JsonParser.parse("1.5E+2"));
+    assertEquals(Double.valueOf(-0.025), JsonParser.parse("-2.5e-2"));
+  }
+
+  public void testMalformed() {
+    String[] docs = { "", "{", "[1, 2", "{\"a\" 1}", "{a: 1}", "[1,]",
+        "tru", "\"abc", "\"\\u12", "\"\\u12zz\"", "1 2", "1e", "--1" };
+    for (String doc : docs) {
+      try {
+        JsonParser.parse(doc);
+        fail("Parsed malformed JSON: " + doc);
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+}